@@ -1,5 +1,6 @@
 import java.util.*;
 import java.io.*;
+import java.nio.file.Paths;
 
 
 public class AckCellTextUI{
@@ -16,17 +17,28 @@ public class AckCellTextUI{
 
   }
 
-  private static String slurp(String fname) throws Exception{
-    return new Scanner(new File(fname), "UTF-8").useDelimiter("\\Z").next();
-  }
-
   public static void echo(String s){
     System.out.println(s);
   }
 
 
+  // Close the journal if one is open, reporting any failure
+  public static void closeJournal(Journal journal){
+    if(journal == null){
+      return;
+    }
+    try{
+      journal.close();
+    }
+    catch(Exception e){
+      System.out.printf("Could not close journal: %s\n",e.getMessage());
+    }
+  }
+
   public static void main(String args[]){
     Spreadsheet sheet = new Spreadsheet();
+    // when not null every change is logged to it as well
+    Journal journal = null;
 
     System.out.println("AckCell Spreadsheet v0.1");
 
@@ -36,6 +48,11 @@ public class AckCellTextUI{
     System.out.println("delete id       :  Delete contents cell with given id");
     System.out.println("save filename   :  Save the current sheet to named file");
     System.out.println("load filename   :  Discard the current sheet and load from the named file");
+    System.out.println("savebin filename:  Save a binary snapshot of the current sheet to named file");
+    System.out.println("loadbin filename:  Discard the current sheet and load the named snapshot");
+    System.out.println("journal dirname :  Discard the current sheet, recover the sheet journaled in the");
+    System.out.println("                   named directory and log every later change there");
+    System.out.println("checkpoint      :  Compact the open journal into a snapshot");
     System.out.println("quit            :  Quit program");
     System.out.println();
 
@@ -54,13 +71,19 @@ public class AckCellTextUI{
       if(command.equals("quit")){
         echo(command);
         System.out.println("Quitting...");
+        closeJournal(journal);
       }
       else if(command.equals("set")){
         String id = input.next();
         String contents = input.nextLine().trim();
         try{
           echo(String.format("%s %s %s",command,id,contents));
-          sheet.setCell(id,contents);
+          if(journal != null){
+            journal.setCell(id,contents);
+          }
+          else{
+            sheet.setCell(id,contents);
+          }
         }
         catch(Exception e){
           System.out.printf("Could not set cell %s to %s:\n%s\n",
@@ -69,17 +92,26 @@ public class AckCellTextUI{
       }
       else if(command.equals("delete")){
         String id = input.next();
-        sheet.deleteCell(id);
+        try{
+          if(journal != null){
+            journal.deleteCell(id);
+          }
+          else{
+            sheet.deleteCell(id);
+          }
+        }
+        catch(Exception e){
+          System.out.printf("Could not delete cell %s:\n%s\n",id,e.getMessage());
+        }
       }
       else if(command.equals("save")){
         String filename = input.nextLine().trim();
         echo(String.format("%s %s",command,filename));
         System.out.printf("Saving sheet to '%s' filename... ",filename);
         try{
-          PrintWriter out = new PrintWriter(new File(filename));
-          String saveString = sheet.toSaveString();
-          out.print(saveString);
-          out.close();
+          // stream the cells to the file rather than building one
+          // string of the whole sheet first
+          sheet.save(Paths.get(filename));
           System.out.printf("done.\n");
         }
         catch(Exception e){
@@ -91,14 +123,74 @@ public class AckCellTextUI{
         echo(String.format("%s %s",command,filename));
         System.out.printf("Loading sheet to '%s' filename... ",filename);
         try{
-          String saveString = slurp(filename);
-          sheet = Spreadsheet.fromSaveString(saveString);
+          // read the file line by line rather than slurping it
+          sheet = Spreadsheet.load(Paths.get(filename));
+          closeJournal(journal);
+          journal = null;
           System.out.printf("done.\n");
         }
         catch(Exception e){
           System.out.printf("\nCould not load sheet: %s\n",e.getMessage());
         }
       }
+      else if(command.equals("savebin")){
+        String filename = input.nextLine().trim();
+        echo(String.format("%s %s",command,filename));
+        System.out.printf("Saving snapshot to '%s' filename... ",filename);
+        try{
+          sheet.saveSnapshot(Paths.get(filename));
+          System.out.printf("done.\n");
+        }
+        catch(Exception e){
+          System.out.printf("\nCould not save snapshot: %s\n",e.getMessage());
+        }
+      }
+      else if(command.equals("loadbin")){
+        String filename = input.nextLine().trim();
+        echo(String.format("%s %s",command,filename));
+        System.out.printf("Loading snapshot from '%s' filename... ",filename);
+        try{
+          // values and links are read back as saved, nothing is
+          // parsed or recalculated
+          sheet = Spreadsheet.loadSnapshot(Paths.get(filename));
+          closeJournal(journal);
+          journal = null;
+          System.out.printf("done.\n");
+        }
+        catch(Exception e){
+          System.out.printf("\nCould not load snapshot: %s\n",e.getMessage());
+        }
+      }
+      else if(command.equals("journal")){
+        String dirname = input.nextLine().trim();
+        echo(String.format("%s %s",command,dirname));
+        System.out.printf("Opening journal in '%s'... ",dirname);
+        // the directory may be the one already open
+        closeJournal(journal);
+        journal = null;
+        try{
+          journal = Journal.open(Paths.get(dirname));
+          sheet = journal.sheet();
+          System.out.printf("done.\n");
+        }
+        catch(Exception e){
+          System.out.printf("\nCould not open journal: %s\n",e.getMessage());
+        }
+      }
+      else if(command.equals("checkpoint")){
+        echo(command);
+        if(journal == null){
+          System.out.printf("No journal is open\n");
+        }
+        else{
+          try{
+            journal.checkpoint();
+          }
+          catch(Exception e){
+            System.out.printf("Could not checkpoint journal: %s\n",e.getMessage());
+          }
+        }
+      }
       else{
         echo(String.format("%s",command));
         System.out.printf("Unrecognized command '%s'\n",command);
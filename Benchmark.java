@@ -0,0 +1,328 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.function.IntToDoubleFunction;
+import java.lang.management.ManagementFactory;
+
+// Benchmarks of the hot paths of the spreadsheet on synthetic sheets of
+// a chosen shape and size, run from the command line:
+//
+//   java Benchmark [-size N] [-warmup S] [-time S] [-shapes a,b,..] [-ops a,b,..]
+//
+// Shapes, each about N cells generated in topological order:
+//
+//   chain    A1 = 1, A(i) = A(i-1) + 1: one long dependency chain
+//   diamond  A(k) feeds B(k) and C(k) which both feed A(k+1)
+//   fanout   every formula reads A1, a change of A1 touches them all
+//   fanin    each B cell sums a window of 64 number cells in column A
+//   random   formulas reading 1 to 4 random earlier cells
+//
+// Operations:
+//
+//   parse    FNode.parseFormulaString() of each formula in turn
+//   eval     CompiledFormula.evaluate() of each formula in turn, the
+//            path FormulaCell.updateValue() runs
+//   tree     Cell.evalFormulaValue() of each formula tree in turn, the
+//            tree walker kept for evalFormulaTree()
+//   dag      DAG.add() of each formula cell in turn with an extra link
+//            from a spare cell, then again without it.  The spare cell
+//            is created last in the topological order, so every new
+//            link sends DAG.insertLink() through a reorder of the cells
+//            downstream of the formula, and the cycle check.
+//   set      Spreadsheet.setCell() of a number cell, recalculating
+//            everything downstream of it
+//   load     Spreadsheet.fromSaveString() of the whole sheet
+//
+// Each operation is run for the warmup time and then measured for the
+// given time.  Every call is timed on its own, so the report gives
+// throughput, latency percentiles and the bytes allocated per call by
+// the measuring thread, taken from the ThreadMXBean.  Results are a
+// rough guide for quick comparisons on the same machine; the same
+// fixtures run under JMH, with forks and measurement iterations, from
+// jmh/bench/EngineBenchmark.java with "gradle jmh".
+public class Benchmark {
+
+    private static final String[] SHAPES = {"chain", "diamond", "fanout", "fanin", "random"};
+    private static final String[] OPS = {"parse", "eval", "tree", "dag", "set", "load"};
+    private static final int FAN_IN = 64;
+    // Cell outside of every generated sheet linked in and out by the
+    // dag operation
+    private static final String SPARE_ID = "ZZZ1";
+
+    // Results of the operations, kept so that the JIT cannot drop them
+    private static volatile double sink;
+
+    public static void main(String[] args) {
+        int size = 10000;
+        double warmup = 2;
+        double time = 5;
+        String[] shapes = SHAPES;
+        String[] ops = OPS;
+        for(int i = 0; i + 1 < args.length; i += 2) {
+            if(args[i].equals("-size")) {
+                size = Integer.parseInt(args[i + 1]);
+            } else if(args[i].equals("-warmup")) {
+                warmup = Double.parseDouble(args[i + 1]);
+            } else if(args[i].equals("-time")) {
+                time = Double.parseDouble(args[i + 1]);
+            } else if(args[i].equals("-shapes")) {
+                shapes = args[i + 1].split(",");
+            } else if(args[i].equals("-ops")) {
+                ops = args[i + 1].split(",");
+            } else {
+                throw new IllegalArgumentException("Unknown option " + args[i]);
+            }
+        }
+        if(args.length % 2 != 0) {
+            throw new IllegalArgumentException("Option " + args[args.length - 1] + " needs a value");
+        }
+
+        System.out.printf("%-8s %8s %-6s %12s %10s %10s %10s %12s%n",
+                          "shape", "cells", "op", "ops/s", "p50 us", "p99 us", "max us", "bytes/op");
+        for(String shape : shapes) {
+            Fixture fixture = new Fixture(shape, size);
+            for(String op : ops) {
+                Result result = measure(fixture.operation(op), warmup, time);
+                System.out.printf("%-8s %8d %-6s %12.1f %10.2f %10.2f %10.2f %12s%n",
+                                  shape, fixture.ids.length, op, result.throughput,
+                                  result.p50 / 1e3, result.p99 / 1e3, result.max / 1e3,
+                                  result.bytesPerOp < 0 ? "n/a" : String.format("%.0f", result.bytesPerOp));
+            }
+        }
+    }
+
+    // Throughput, latencies in nanoseconds and allocation of one run
+    public static class Result {
+        public final double throughput;
+        public final long p50;
+        public final long p99;
+        public final long max;
+        public final double bytesPerOp; // negative if not supported
+
+        Result(double throughput, long p50, long p99, long max, double bytesPerOp) {
+            this.throughput = throughput;
+            this.p50 = p50;
+            this.p99 = p99;
+            this.max = max;
+            this.bytesPerOp = bytesPerOp;
+        }
+    }
+
+    // Run the operation with call numbers 0, 1, 2, .. for the warmup
+    // time, then for the measuring time timing every call
+    public static Result measure(IntToDoubleFunction operation, double warmupSeconds, double seconds) {
+        double result = 0;
+        int call = 0;
+        long end = System.nanoTime() + (long) (warmupSeconds * 1e9);
+        while(System.nanoTime() < end) {
+            result += operation.applyAsDouble(call++);
+        }
+
+        long[] latencies = new long[1024];
+        int count = 0;
+        long allocatedBefore = allocatedBytes();
+        long start = System.nanoTime();
+        end = start + (long) (seconds * 1e9);
+        long now = start;
+        while(now < end) {
+            result += operation.applyAsDouble(call++);
+            long done = System.nanoTime();
+            if(count == latencies.length) {
+                latencies = Arrays.copyOf(latencies, count * 2);
+            }
+            latencies[count++] = done - now;
+            now = done;
+        }
+        long allocatedAfter = allocatedBytes();
+        sink = result;
+
+        // the latency array itself is allocated while measuring, which
+        // is amortized to nothing over many calls
+        double bytesPerOp = allocatedBefore < 0 ? -1 : (double) (allocatedAfter - allocatedBefore) / count;
+        Arrays.sort(latencies, 0, count);
+        return new Result(count / ((now - start) / 1e9),
+                          latencies[(int) (count * 0.50)],
+                          latencies[Math.min(count - 1, (int) (count * 0.99))],
+                          latencies[count - 1],
+                          bytesPerOp);
+    }
+
+    // Bytes allocated so far by the current thread, -1 if the JVM cannot
+    // tell
+    private static long allocatedBytes() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if(!(bean instanceof com.sun.management.ThreadMXBean)) {
+            return -1;
+        }
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+        if(!threads.isThreadAllocatedMemorySupported() || !threads.isThreadAllocatedMemoryEnabled()) {
+            return -1;
+        }
+        return threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    // A generated sheet and everything the operations need prepared from
+    // it: the save string, parsed formulas, evaluated cells, a DAG and a
+    // loaded spreadsheet.
+    public static class Fixture {
+        public final String[] ids;       // in topological order
+        public final String[] contents;
+        private final String saveString;
+        private final String[] formulas;
+        private final FNode[] trees;
+        private final CompiledFormula[] programs;
+        private final int[] formulaRefs;
+        private final int[][] upstreamRefs;
+        private final int[][] withSpare;   // upstreamRefs plus SPARE_ID
+        private final String[] numberIds;
+        private final CellMap cellMap = new CellMap();
+        private final DAG dag = new DAG();
+        private final Spreadsheet sheet;
+        private final String[] digits = {"0", "1", "2", "3", "4", "5", "6", "7", "8", "9"};
+
+        public Fixture(String shape, int size) {
+            List<String> idList = new ArrayList<>();
+            List<String> contentList = new ArrayList<>();
+            generate(shape, Math.max(size, 2), idList, contentList);
+            ids = idList.toArray(new String[0]);
+            contents = contentList.toArray(new String[0]);
+
+            StringBuilder save = new StringBuilder();
+            List<String> formulaList = new ArrayList<>();
+            List<String> numberList = new ArrayList<>();
+            List<Integer> refList = new ArrayList<>();
+            List<int[]> upstreamList = new ArrayList<>();
+            for(int i = 0; i < ids.length; i++) {
+                save.append(ids[i]).append(' ').append(contents[i]).append('\n');
+                int ref = CellRef.parse(ids[i]);
+                Cell cell = Cell.make(contents[i]);
+                cellMap.put(ref, cell);
+                // generated in topological order, upstream cells are ready
+                cell.updateValue(cellMap);
+                if(cell.kind().equals("formula")) {
+                    formulaList.add(contents[i]);
+                    refList.add(ref);
+                    upstreamList.add(cell.getUpstreamRefs());
+                    dag.add(ref, cell.getUpstreamRefs());
+                } else {
+                    numberList.add(ids[i]);
+                }
+            }
+            saveString = save.toString();
+            formulas = formulaList.toArray(new String[0]);
+            trees = new FNode[formulas.length];
+            programs = new CompiledFormula[formulas.length];
+            for(int i = 0; i < formulas.length; i++) {
+                trees[i] = FNode.parseFormulaString(formulas[i]);
+                programs[i] = CompiledFormula.compile(trees[i]);
+            }
+            formulaRefs = new int[refList.size()];
+            for(int i = 0; i < formulaRefs.length; i++) {
+                formulaRefs[i] = refList.get(i);
+            }
+            upstreamRefs = upstreamList.toArray(new int[0][]);
+            withSpare = new int[upstreamRefs.length][];
+            for(int i = 0; i < withSpare.length; i++) {
+                withSpare[i] = Arrays.copyOf(upstreamRefs[i], upstreamRefs[i].length + 1);
+                withSpare[i][upstreamRefs[i].length] = CellRef.parse(SPARE_ID);
+            }
+            numberIds = numberList.toArray(new String[0]);
+            sheet = Spreadsheet.fromSaveString(saveString);
+        }
+
+        // Return the named operation on this sheet, called with
+        // successive call numbers
+        public IntToDoubleFunction operation(String op) {
+            if(op.equals("parse")) {
+                return i -> FNode.parseFormulaString(formulas[i % formulas.length]) == null ? 0 : 1;
+            } else if(op.equals("eval")) {
+                return i -> programs[i % programs.length].evaluate(cellMap);
+            } else if(op.equals("tree")) {
+                return i -> Cell.evalFormulaValue(trees[i % trees.length], cellMap);
+            } else if(op.equals("dag")) {
+                return i -> {
+                    int j = (i / 2) % formulaRefs.length;
+                    if(i % 2 == 0) {
+                        dag.add(formulaRefs[j], withSpare[j]);
+                    } else {
+                        dag.add(formulaRefs[j], upstreamRefs[j]);
+                    }
+                    return j;
+                };
+            } else if(op.equals("set")) {
+                return i -> {
+                    sheet.setCell(numberIds[i % numberIds.length], digits[i % digits.length]);
+                    return i;
+                };
+            } else if(op.equals("load")) {
+                return i -> Spreadsheet.fromSaveString(saveString) == null ? 0 : 1;
+            }
+            throw new IllegalArgumentException("Unknown operation " + op);
+        }
+    }
+
+    // Generate about size cells of the shape in topological order
+    private static void generate(String shape, int size, List<String> ids, List<String> contents) {
+        if(shape.equals("chain")) {
+            ids.add("A1");
+            contents.add("1");
+            for(int i = 2; i <= size; i++) {
+                ids.add("A" + i);
+                contents.add("=A" + (i - 1) + "+1");
+            }
+        } else if(shape.equals("diamond")) {
+            // halving on both sides keeps every value at 1
+            ids.add("A1");
+            contents.add("1");
+            for(int k = 1; 3 * k < size; k++) {
+                ids.add("B" + k);
+                contents.add("=A" + k + "/2");
+                ids.add("C" + k);
+                contents.add("=A" + k + "/2");
+                ids.add("A" + (k + 1));
+                contents.add("=B" + k + "+C" + k);
+            }
+        } else if(shape.equals("fanout")) {
+            ids.add("A1");
+            contents.add("1");
+            for(int i = 2; i <= size; i++) {
+                ids.add("A" + i);
+                contents.add("=A1*" + i);
+            }
+        } else if(shape.equals("fanin")) {
+            int width = Math.min(FAN_IN, size / 2);
+            int sums = Math.max(1, size / 2);
+            for(int i = 1; i < sums + width; i++) {
+                ids.add("A" + i);
+                contents.add(Integer.toString(i % 100));
+            }
+            for(int j = 1; j <= sums; j++) {
+                StringBuilder formula = new StringBuilder("=A").append(j);
+                for(int k = 1; k < width; k++) {
+                    formula.append("+A").append(j + k);
+                }
+                ids.add("B" + j);
+                contents.add(formula.toString());
+            }
+        } else if(shape.equals("random")) {
+            // fixed seed so every run measures the same sheet
+            Random random = new Random(42);
+            for(int i = 1; i <= size; i++) {
+                ids.add("A" + i);
+                if(i <= 16 || random.nextInt(5) == 0) {
+                    contents.add(Integer.toString(random.nextInt(1000)));
+                    continue;
+                }
+                StringBuilder formula = new StringBuilder("=A").append(1 + random.nextInt(i - 1));
+                int reads = 1 + random.nextInt(4);
+                for(int k = 1; k < reads; k++) {
+                    formula.append(random.nextBoolean() ? "+A" : "-A").append(1 + random.nextInt(i - 1));
+                }
+                contents.add(formula.toString());
+            }
+        } else {
+            throw new IllegalArgumentException("Unknown shape " + shape);
+        }
+    }
+}
@@ -1,14 +1,18 @@
 import java.util.Map;
 import java.util.Set;
 import java.util.HashSet;
+import java.math.BigDecimal;
+import java.math.RoundingMode;
 
 // Spreadsheet Cells can be one of three different kinds:
 // - Formulas always start with the = sign.  If the 0th character in
 //   contents is a '=', use the method
 //     FNode root = FNode.parseFormulaString(contents);
 //   to create a formula tree of FNodes for later use.
-// - Numbers can be parsed as doubles using the
-//   Double.parseDouble(contents) method.  
+// - Numbers are the contents accepted by the
+//   Double.parseDouble(contents) method.  NumberScanner.scan(contents)
+//   recognizes the same strings and parses them without throwing for
+//   contents which are not numbers.
 // - Strings are anything else aside from Formulas and Numbers and
 //   store only the contents given.
 //
@@ -20,31 +24,18 @@ import java.util.HashSet;
 // contents using the method
 //   newCell = Cell.make(contents);
 //
-// This class may contain nested static subclasses to implement the
-// differnt kinds of cells.
-public class Cell {
+// Each kind of cell is a nested static subclass, NumberCell,
+// StringCell and FormulaCell, which holds only the state its kind
+// needs.  Code on the evaluation path dispatches on the subclass
+// through virtual methods instead of comparing kind() strings.
+public abstract class Cell {
  
-    private String kind; // the kind of the cell
-    private boolean isError; // to track whether cell is in Error state
-    private Double numberValue; // numeric  value for cell of number and formula kind 
-    // Display the orginal contents for string kind, 
-    // numeric value of 1 decimal point of accuracy
-    // for number and formula kind
-    private String displayString; 
-    private String contents; // Original contents
-    private FNode treeRoot;  // Root for a formula kind cell
-    private Set<String> upstreamIDs; // a set of upstreamIDs for formula kind cell
-    
-    // private constrctor to create a Cell object
-    private Cell(String kind, boolean isError, Double numberValue, 
-                 String displayString, String contents, FNode treeRoot) {
-        this.kind = kind;
-        this.isError = isError;
-        this.numberValue = numberValue;
-        this.displayString = displayString;
+    private final String contents; // Original contents
+    private boolean dirty; // an upstream cell changed and value awaits recalculation
+    
+    // constructor for the subclasses to record the trimmed contents
+    private Cell(String contents) {
         this.contents = contents;
-        this.treeRoot = treeRoot;
-        this.upstreamIDs = new HashSet<>();
     }
     
     // Factory method to create cells with the given contents linked to
@@ -76,46 +67,31 @@ public class Cell {
             return null;
         }
         
-        // variables for passing to Cell constructor
-        String kind = "";
-        String displayString = "";
-        boolean isError = false;
-        Double numberValue = null;
-        FNode treeRoot = null;
-        try {
-            // if Double.parseDouble(trimContents) does not raise exception,
-            // it is a numberCell
-            // numberCells are never in Error
-            double value = Double.parseDouble(trimContents);
-            kind = "number";
-            numberValue = new Double(value);
-            displayString = String.format("%.1f", numberValue);
-        } catch(Exception e){
-            // if Double.parseDouble(trimContents) raise exception,
-            // if first char is =, it is formulaCell
-            // untill updateValue of this formulaCell
-            // it is in Error state
-            if(trimContents.charAt(0) == '=') {
-                kind = "formula";
-                isError = true;
-                displayString = "ERROR";
-                treeRoot = FNode.parseFormulaString(trimContents);
-            } else {
-                // else it is stringCell
-                // stringCells are never in Error
-                kind = "string";
-                displayString = trimContents;
-            }
+        // Classify the contents in one pass without exceptions: if
+        // Double.parseDouble(trimContents) would succeed, it is a
+        // numberCell and the value comes from the same scan
+        // numberCells are never in Error
+        double value = NumberScanner.scan(trimContents);
+        if(!NumberScanner.isNotNumber(value)) {
+            return new NumberCell(trimContents, value);
+        }
+        // if first char is =, it is formulaCell
+        // untill updateValue of this formulaCell
+        // it is in Error state
+        if(trimContents.charAt(0) == '=') {
+            // identical formula texts share one parsed and
+            // compiled form from the cache
+            FormulaCache.Parsed parsed = FormulaCache.shared().get(trimContents);
+            return new FormulaCell(trimContents, parsed);
         }
-        return new Cell(kind, isError, numberValue,
-                        displayString, trimContents, treeRoot);
+        // else it is stringCell
+        // stringCells are never in Error
+        return new StringCell(trimContents);
     }
     
     // Return the kind of the cell which is one of "string", "number",
     // or "formula".
-    public String kind() {
-        return kind;
-    }
+    public abstract String kind();
     
     // Returns whether the cell is currently in an error state. Cells
     // with kind() "string" and "number" are never in error.  Formula
@@ -123,7 +99,7 @@ public class Cell {
     // which are blank or have kind "string" and therefore cannot be
     // used to calculate the value of the cell.
     public boolean isError() {
-        return isError;
+        return false;
     }
     
     // Produce a string to display the contents of the cell.  For kind()
@@ -131,14 +107,13 @@ public class Cell {
     // of the cell.  For formula cells which are in error, return the
     // string "ERROR".  Formula cells which are not in error return a
     // string of their numeric value with 1 decimal digit of accuracy
-    // which is easiest to produce with the String.format() method.
+    // as produced by formatValue().  The string is built on the first
+    // call after the value changes and cached until the next change.
     //
     // Target Complexity: O(1)
     // Avoid repeated formula evaluation by traversing the formula tree
     // only in updateFormulaValue()
-    public String displayString() {
-        return displayString;
-    }
+    public abstract String displayString();
     
     // Return the numeric value of this cell.  If the cell is kind
     // "number", this is the double value of its contents.  For kind
@@ -148,8 +123,101 @@ public class Cell {
     // Target Complexity: O(1)
     // Avoid repeated formula evaluation by traversing the formula tree
     // only in updateFormulaValue()
+    //
+    // The value is stored unboxed; this method boxes it on each call and
+    // remains for compatibility.  Evaluation uses doubleValue().
     public Double numberValue() {
-        return numberValue;
+        double value = doubleValue();
+        if(isErrorValue(value)) {
+            return null;
+        }
+        return value;
+    }
+    
+    // Return the numeric value of this cell without boxing.  Cells
+    // which have no usable number value (kind "string" or in error)
+    // return the ERROR value, test for it with isErrorValue().
+    //
+    // Target Complexity: O(1)
+    public abstract double doubleValue();
+    
+    // The value returned by evaluation in place of a number when a
+    // formula cannot be evaluated: a NaN with a payload of its own.
+    // Ordinary arithmetic only ever produces the default NaN so a
+    // genuine NaN result such as that of =0/0 is never mistaken for an
+    // error.  Evaluation stops as soon as an ERROR is produced so the
+    // payload is never passed through arithmetic.
+    public static final double ERROR = Double.longBitsToDouble(0x7ff80000000e4404L);
+    
+    // Return whether the given value is the ERROR value.  NaN compares
+    // unequal to everything, so the raw bits are compared instead.
+    //
+    // Target Complexity: O(1)
+    public static boolean isErrorValue(double value) {
+        return Double.doubleToRawLongBits(value) == 0x7ff80000000e4404L;
+    }
+    
+    // Format a value with 1 decimal digit of accuracy exactly like
+    // String.format("%.1f", value) without the cost of a Formatter.
+    // Like the Formatter, rounding is half up on the shortest decimal
+    // digits of the value given by Double.toString().  Whole numbers,
+    // the common case, need no digit string at all.
+    //
+    // Target Complexity: O(1)
+    public static String formatValue(double value) {
+        if(Double.isNaN(value)) {
+            return "NaN";
+        }
+        if(Double.isInfinite(value)) {
+            return value > 0 ? "Infinity" : "-Infinity";
+        }
+        // the sign bit is tested so that -0.0 formats as "-0.0"
+        boolean negative = Double.doubleToRawLongBits(value) < 0;
+        double magnitude = Math.abs(value);
+        StringBuilder builder = new StringBuilder(24);
+        if(negative) {
+            builder.append('-');
+        }
+        if(magnitude < 1e15 && magnitude == Math.rint(magnitude)) {
+            // whole number, no rounding necessary
+            return builder.append((long) magnitude).append(".0").toString();
+        }
+        String digits = Double.toString(magnitude);
+        if(digits.indexOf('E') >= 0) {
+            if(magnitude < 1.0) {
+                // below 1e-3 which always rounds to zero
+                return builder.append("0.0").toString();
+            }
+            // large fractional values are rare, leave them to BigDecimal
+            BigDecimal decimal = new BigDecimal(digits).setScale(1, RoundingMode.HALF_UP);
+            return builder.append(decimal.toPlainString()).toString();
+        }
+        int dot = digits.indexOf('.');
+        if(digits.length() == dot + 2) {
+            // exactly one decimal digit already
+            return builder.append(digits).toString();
+        }
+        // keep one decimal digit and round half up on the next one
+        char[] kept = digits.substring(0, dot + 2).toCharArray();
+        if(digits.charAt(dot + 2) >= '5') {
+            int i = kept.length - 1;
+            while(i >= 0) {
+                if(kept[i] == '.') {
+                    i--;
+                } else if(kept[i] == '9') {
+                    kept[i] = '0';
+                    i--;
+                } else {
+                    kept[i]++;
+                    break;
+                }
+            }
+            if(i < 0) {
+                // carried out of the leading digit, e.g. 9.96 to 10.0
+                builder.append('1');
+            }
+        }
+        return builder.append(kept).toString();
     }
     
     // Return the raw contents of the cell. For kind() "number" and
@@ -161,9 +229,28 @@ public class Cell {
         return contents;   
     }
     
+    // Mark this cell as awaiting recalculation because an upstream cell
+    // changed.  The housing spreadsheet marks every cell of a
+    // recalculation before updating them so that a formula reading a
+    // dirty upstream cell brings it up to date first instead of using a
+    // stale value.  The mark is cleared by updateValue().
+    //
+    // Target Complexity: O(1)
+    public void markDirty() {
+        dirty = true;
+    }
+    
+    // Return whether this cell is awaiting recalculation.
+    //
+    // Target Complexity: O(1)
+    public boolean isDirty() {
+        return dirty;
+    }
+    
     // Update the value of the cell value. If the cell is not a formula
     // (string and number), do nothing.  Formulas should re-evaluate the
-    // stored formula tree to determine a numeric value.  This method
+    // stored formula to determine a numeric value; the tree is compiled
+    // once in make() and the compiled program is what runs here.  This method
     // may be called when the cell is initially created to give it a
     // numeric value in which case an empty map should be used.
     // Whenever an upstream cell changes value, the housing spreadsheet
@@ -178,39 +265,86 @@ public class Cell {
     //   O(1) for "number" and "string" cells
     //   O(T) for "formula" nodes where T is the number of nodes in the
     //        formula tree
+    public void updateValue(CellMap cellMap) {
+        // clear first so each cell is evaluated at most once per
+        // recalculation even when reached from several formulas
+        dirty = false;
+        // numberCell or stringCell, do nothing
+    }
+    
+    // Update the value of the cell as updateValue(CellMap) with the
+    // cells keyed by their IDs.  Kept for callers outside of the
+    // spreadsheet; it copies the map first.
+    //
+    // Target Complexity: O(N + T) where N is the size of cellMap
     public void updateValue(Map<String,Cell> cellMap) {
-        try {
-            if(kind.equals("formula")) {
-                // if it is a formulaCell, evaluate the cell
-                // and if there is no exception during 
-                // evalFormulaTree, it is no more in Error state
-                numberValue = evalFormulaTree(treeRoot, cellMap);
-                displayString = String.format("%.1f", numberValue);
-                isError = false;
+        updateValue(toCellMap(cellMap));
+    }
+    
+    // Copy cells keyed by ID into a CellMap.  Keys which are not well
+    // formatted IDs can never be referenced by a formula and are left
+    // out, as are null cells.
+    private static CellMap toCellMap(Map<String,Cell> cells) {
+        CellMap cellMap = new CellMap();
+        for(Map.Entry<String,Cell> entry : cells.entrySet()) {
+            if(entry.getValue() != null && CellRef.isWellFormed(entry.getKey())) {
+                cellMap.put(CellRef.parse(entry.getKey()), entry.getValue());
             }
-            // else it is numberCell or stringCell, 
-            // do nothing
-        } catch(EvalFormulaException e) {
-            // if exception occur during evalFormulaTree
-            // it is in Error state
-            numberValue = null;
-            displayString = "ERROR";
-            isError = true;
         }
+        return cellMap;
     }
     
+    // Return a set of upstream cells from this cell. Cells of kind
+    // "string" and "number" return an empty set.  Formula cells are
+    // dependent on the contents of any cell whose ID appears in the
+    // formula and returns all such ids in a set.
+    // 
+    // Target Complexity: O(T)
+    public Set<String> getUpstreamIDs() {
+        Set<String> ids = new HashSet<>();
+        int[] refs = getUpstreamRefs();
+        for(int i = 0; i < refs.length; i++) {
+            ids.add(CellRef.toID(refs[i]));
+        }
+        return ids;
+    }
+    
+    // Return the packed CellRefs of the upstream cells, each distinct
+    // cell once, as used by the housing spreadsheet to link the cell
+    // into its DAG.  Cells of kind "string" and "number" return an
+    // empty array.  The array is shared and must not be modified.
+    //
+    // Target Complexity: O(1)
+    public int[] getUpstreamRefs() {
+        return NO_REFS;
+    }
+    
+    private static final int[] NO_REFS = new int[0];
+    
     // A simple class to reflect problems evaluating a formula tree.
+    // Evaluation itself reports unusable cells through the ERROR value
+    // and the exception is only raised once by evalFormulaTree(), so it
+    // skips filling in a stack trace which nobody inspects.
     public static class EvalFormulaException extends RuntimeException{
         
         public EvalFormulaException(String msg) {
-            super(msg);
+            super(msg, null, false, false);
         }
         
     }
     
+    // Returned by evalTree() when a referenced cell is blank, so that
+    // evalFormulaTree() can tell it apart from an unusable cell.  Like
+    // ERROR it is a NaN with a payload of its own.
+    private static final double BLANK = Double.longBitsToDouble(0x7ff80000000b1a4bL);
+    
     // Recursively evaluate the formula tree rooted at the given
     // node. Return the computed value.  Use the given map to retrieve
-    // the number value of cells which appear in the formula.  If any
+    // the number value of cells which appear in the formula.  Upstream
+    // formula cells contribute their cached value rather than having
+    // their own trees re-walked; an upstream cell still marked dirty
+    // in the current recalculation is updated first and its result
+    // reused by every later reference.  If any
     // cell ID in the formula is unusable (blank, error, string), this
     // method raises an EvalFormulaException.  
     // 
@@ -225,83 +359,267 @@ public class Cell {
     // 
     // Target Complexity: O(T) 
     //   T: the number of nodes in the formula tree
+    public static Double evalFormulaTree(FNode node, CellMap cellMap) {
+        double value = evalTree(node, cellMap);
+        if(isBlankValue(value)) {
+            // a referenced cell is null, we are not able to evaluate the expression
+            throw new EvalFormulaException("The cell is blank");
+        }
+        if(isErrorValue(value)) {
+            // a referenced cell is whether a stringCell or 
+            // it is a formulaCell in Error state
+            throw new EvalFormulaException("Cell unusable(error, string)");
+        }
+        return value;
+    }
+    
+    // Evaluate the formula tree as evalFormulaTree(FNode, CellMap) with
+    // the cells keyed by their IDs.  Kept for callers outside of the
+    // spreadsheet; it copies the map first.
+    //
+    // Target Complexity: O(N + T) where N is the size of cellMap
     public static Double evalFormulaTree(FNode node, Map<String,Cell> cellMap) {
+        return evalFormulaTree(node, toCellMap(cellMap));
+    }
+    
+    // Evaluate the formula tree like evalFormulaTree() but report an
+    // unusable cell (blank, error, string) by returning the ERROR value
+    // instead of raising an exception, the way compiled formulas do.
+    // Test the result with isErrorValue().
+    //
+    // Target Complexity: O(T) 
+    public static double evalFormulaValue(FNode node, CellMap cellMap) {
+        double value = evalTree(node, cellMap);
+        return isBlankValue(value) ? ERROR : value;
+    }
+    
+    // Primitive recursion behind evalFormulaTree().  An unusable cell
+    // makes it return ERROR, or BLANK for a blank cell, and the failure
+    // is passed straight up without evaluating the rest of the tree.
+    private static double evalTree(FNode node, CellMap cellMap) {
         if(node == null) {
             // If the node is null,
             // no value is going to be added, so add 0
             return 0.0;
         }
-        if(node.type.equals(TokenType.Plus)) {
-            // if the node is type +, return the value of left child + the value of right child
-            return evalFormulaTree(node.left, cellMap) + evalFormulaTree(node.right, cellMap);
-        } else if(node.type.equals(TokenType.Minus)) {
-            // if the node is type -, return the value of left child - the value of right child
-            return evalFormulaTree(node.left, cellMap) - evalFormulaTree(node.right, cellMap);
-        } else if(node.type.equals(TokenType.Multiply)) {
-            // if the node is type *, return the value of left child * the value of right child
-            return evalFormulaTree(node.left, cellMap) * evalFormulaTree(node.right, cellMap);
-        } else if(node.type.equals(TokenType.Divide)) {
-            // if the node is type /, return the value of left child / the value of right child
-            return evalFormulaTree(node.left, cellMap) / evalFormulaTree(node.right, cellMap);
-        } else if(node.type.equals(TokenType.Negate)) {
-            // if the node is type negate, return the negative value of left child 
-            return -evalFormulaTree(node.left, cellMap);
-        } else if(node.type.equals(TokenType.CellID)) {
+        if(node.type == TokenType.CellID) {
             // if the node is type CellID
-            // get the cell object from cellMap using the CellID as the key
-            Cell cell = cellMap.get(node.data);
+            // return the value of the referenced cell
+            Cell cell = cellMap.get(node.ref);
             if(cell == null) {
-                // if the cell is null, we are not able to evaluate the expression
-                // throw EvalFormulaException.
-                throw new EvalFormulaException("The cell is blank");
+                return BLANK;
             }
-            if(cell.kind().equals("formula") && !cell.isError()) {
-                // if the cell is a formulaCell and not in Error state
-                // return the value of the cell
-                return evalFormulaTree(cell.treeRoot, cellMap);
-            } else if(cell.kind().equals("number")) {
-                // if it is a numberCell, return its value
-                return cell.numberValue();
-            } else {
-                // the cell is a whether a stringCell or 
-                // it is a formulaCell in Error state
-                // not able to evaluate the expression
-                // throw EvalFormulaException.
-                throw new EvalFormulaException("Cell unusable(error, string)");
-            }
-        } else if(node.type.equals(TokenType.Number)) {
+            // the cell is a whether a stringCell or
+            // it is a formulaCell in Error state gives ERROR
+            return referenceValue(cell, cellMap);
+        } else if(node.type == TokenType.Number) {
             // if the node is type number, return the value of the node
-            return Double.parseDouble(node.data);
+            // which was parsed when the node was constructed
+            return node.number;
+        }
+        double left = evalTree(node.left, cellMap);
+        if(isFailure(left)) {
+            return left;
+        }
+        if(node.type == TokenType.Negate) {
+            // if the node is type negate, return the negative value of left child 
+            return -left;
+        }
+        double right = evalTree(node.right, cellMap);
+        if(isFailure(right)) {
+            return right;
+        }
+        if(node.type == TokenType.Plus) {
+            // if the node is type +, return the value of left child + the value of right child
+            return left + right;
+        } else if(node.type == TokenType.Minus) {
+            // if the node is type -, return the value of left child - the value of right child
+            return left - right;
+        } else if(node.type == TokenType.Multiply) {
+            // if the node is type *, return the value of left child * the value of right child
+            return left * right;
+        } else if(node.type == TokenType.Divide) {
+            // if the node is type /, return the value of left child / the value of right child
+            return left / right;
         } else {
             // something strange happened
             throw new RuntimeException("Something strange happened"); 
         }
     }
     
-    // Return a set of upstream cells from this cell. Cells of kind
-    // "string" and "number" return an empty set.  Formula cells are
-    // dependent on the contents of any cell whose ID appears in the
-    // formula and returns all such ids in a set.  For formula cells,
-    // this method should call a recursive helper method to traverse the
-    // formula tree and accumulate a set of ids in the formula tree.
-    // 
-    // Target Complexity: O(T)
-    public Set<String> getUpstreamIDs() {
-        postOrder(treeRoot); // call helper method to traverse the formula tree
-        return upstreamIDs;
+    // Whether the value is the BLANK marker of evalTree()
+    private static boolean isBlankValue(double value) {
+        return Double.doubleToRawLongBits(value) == 0x7ff80000000b1a4bL;
     }
     
-    // A recursive helper method to traverse the formula tree
-    // in postOrder and accumulate a set of ids in the formula tree.
-    private void postOrder(FNode node) {
-        if(node == null) {
-            return;
+    // Whether evalTree() failed with either ERROR or BLANK
+    private static boolean isFailure(double value) {
+        return isErrorValue(value) || isBlankValue(value);
+    }
+    
+    // Return the number value of the cell with the given CellRef for use in
+    // a formula.  An upstream cell still marked dirty in the current
+    // recalculation is updated first.  If the cell is unusable (blank,
+    // error, string), return the ERROR value.  Shared by
+    // evalFormulaTree() and compiled formulas.
+    //
+    // Target Complexity: O(1) unless the cell is dirty
+    public static double referenceValue(int ref, CellMap cellMap) {
+        // get the cell object from cellMap using the CellRef as the key
+        return referenceValue(cellMap.get(ref), cellMap);
+    }
+    
+    // Return the number value of the given cell, null for a blank one,
+    // as referenceValue(int, CellMap) once the cell has been looked up.
+    private static double referenceValue(Cell cell, CellMap cellMap) {
+        if(cell == null) {
+            // if the cell is null, we are not able to evaluate the expression
+            return ERROR;
+        }
+        if(cell.isDirty()) {
+            // the upstream cell has not been recalculated yet,
+            // bring it up to date once before using its value
+            cell.updateValue(cellMap);
+        }
+        // formula cells in Error state and stringCells give ERROR,
+        // number cells and usable formula cells their cached value
+        return cell.doubleValue();
+    }
+    
+    // A cell holding a number.  Number cells are never in error and
+    // their value and display string never change.
+    public static class NumberCell extends Cell {
+        
+        private final double value; // the parsed contents
+        private String displayString; // value with 1 decimal digit, made on first request
+        
+        // Also used to restore a cell read back from a snapshot, with
+        // the trimmed contents and their value
+        NumberCell(String contents, double value) {
+            super(contents);
+            this.value = value;
+        }
+        
+        public String kind() {
+            return "number";
+        }
+        
+        public String displayString() {
+            if(displayString == null) {
+                displayString = formatValue(value);
+            }
+            return displayString;
+        }
+        
+        public double doubleValue() {
+            return value;
         }
-        postOrder(node.left); // go to left child
-        postOrder(node.right); // go to right child
-        if(node.type.equals(TokenType.CellID)) {
-            // Add to upStreamIDs if the node's data is a cell ID
-            upstreamIDs.add(node.data);
+    }
+    
+    // A cell holding a string which displays as its contents and has
+    // no number value.
+    public static class StringCell extends Cell {
+        
+        // Also used to restore a cell read back from a snapshot
+        StringCell(String contents) {
+            super(contents);
+        }
+        
+        public String kind() {
+            return "string";
+        }
+        
+        public String displayString() {
+            return contents();
+        }
+        
+        public double doubleValue() {
+            return ERROR;
+        }
+    }
+    
+    // A cell holding a formula.  Its value is recomputed by
+    // updateValue() whenever upstream cells change and it starts out in
+    // the ERROR state until the first update.
+    public static class FormulaCell extends Cell {
+        
+        // Formula tree, compiled program and upstream CellRefs, shared
+        // with every other cell holding the same formula text
+        private final FormulaCache.Parsed parsed;
+        private boolean isError; // to track whether cell is in Error state
+        private double value; // evaluated value, ERROR while in error
+        // numeric value of 1 decimal point of accuracy or ERROR, made
+        // on first request after each change of value and null until then
+        private String displayString;
+        
+        private FormulaCell(String contents, FormulaCache.Parsed parsed) {
+            super(contents);
+            this.parsed = parsed;
+            this.isError = true;
+            this.value = ERROR;
+        }
+        
+        // Restore a cell read back from a snapshot without parsing.  It
+        // is not dirty and holds the given value, ERROR for a cell in
+        // error, until it is next updated.
+        FormulaCell(FormulaCache.Parsed parsed, double value) {
+            super(parsed.text());
+            this.parsed = parsed;
+            this.isError = isErrorValue(value);
+            this.value = value;
+        }
+        
+        public String kind() {
+            return "formula";
+        }
+        
+        public boolean isError() {
+            return isError;
+        }
+        
+        public String displayString() {
+            if(displayString == null) {
+                displayString = isError ? "ERROR" : formatValue(value);
+            }
+            return displayString;
+        }
+        
+        public double doubleValue() {
+            return value;
+        }
+        
+        // Return the formula of the cell as parsed and compiled, shared
+        // with other cells holding the same formula
+        public FormulaCache.Parsed parsed() {
+            return parsed;
+        }
+        
+        // Return the root of the formula tree, shared with other cells
+        // holding the same formula and not to be modified
+        public FNode treeRoot() {
+            return parsed.tree();
+        }
+        
+        public void updateValue(CellMap cellMap) {
+            super.updateValue(cellMap);
+            double result = parsed.program().evaluate(cellMap);
+            if(isErrorValue(result)) {
+                // an unusable cell was referenced
+                // it is in Error state
+                value = ERROR;
+                isError = true;
+            } else {
+                // it is no more in Error state
+                value = result;
+                isError = false;
+            }
+            // most recalculated cells are never displayed, format the
+            // new value only when displayString() asks for it
+            displayString = null;
+        }
+        
+        public int[] getUpstreamRefs() {
+            return parsed.upstreamRefs();
         }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,177 @@
+// Open-addressing hash map from CellRefs to Cells, laid out like
+// IntIntMap: the keys in a flat int array and the cells in a parallel
+// array, so looking a reference up during evaluation never boxes an
+// Integer.  Collisions are resolved by linear probing in a power of two
+// sized table kept at most half full.
+//
+// The key 0 (CellRef.NONE) marks an empty slot and cannot be stored.
+// Lookups only read the arrays, so any number of threads may call
+// get() at once as long as no thread modifies the map meanwhile.
+//
+// The cells are visited in no particular order, though always the
+// same one for the same cells added in the same order, with
+//
+//   for(int at = map.next(-1); at >= 0; at = map.next(at)) {
+//       int ref = map.keyAt(at);
+//       Cell cell = map.valueAt(at);
+//   }
+//
+// The positions at are not the slots themselves: position p is slot
+// p * STRIDE, an odd multiple which visits every slot once.  Visiting
+// the slots in order would hand out the keys in order of their hash,
+// and saving a sheet and loading it again inserts them into a new map
+// in that order.  They would all land at the start of the new,
+// smaller table and linear probing would walk ever longer runs of
+// full slots.
+public class CellMap {
+
+    // Odd step between the slots of successive positions
+    private static final int STRIDE = 0x9E3779B9;
+
+    private int[] keys;    // 0 for an empty slot
+    private Cell[] values; // cell of the key in the same slot
+    private int size;      // number of keys stored
+    private int mask;      // table length - 1
+    private int shift;     // 32 - log2(table length)
+
+    // Construct an empty map
+    public CellMap() {
+        keys = new int[16];
+        values = new Cell[16];
+        mask = keys.length - 1;
+        shift = 32 - 4;
+        size = 0;
+    }
+
+    // Return the number of cells in the map
+    public int size() {
+        return size;
+    }
+
+    // Return the cell of the given reference, or null if there is none.
+    //
+    // TARGET COMPLEXITY: O(1) expected
+    public Cell get(int key) {
+        if(key == 0) {
+            // never stored, and would match an empty slot
+            return null;
+        }
+        for(int slot = slotOf(key); ; slot = (slot + 1) & mask) {
+            int found = keys[slot];
+            if(found == key) {
+                return values[slot];
+            }
+            if(found == 0) {
+                return null;
+            }
+        }
+    }
+
+    // Associate the given non-null cell with the given non-zero
+    // reference and return the cell it replaces, or null if there was
+    // none.
+    //
+    // TARGET COMPLEXITY: O(1) amortized
+    public Cell put(int key, Cell value) {
+        if(key == 0) {
+            throw new IllegalArgumentException("CellMap cannot store the key 0");
+        }
+        int slot = slotOf(key);
+        while(keys[slot] != 0 && keys[slot] != key) {
+            slot = (slot + 1) & mask;
+        }
+        Cell old = values[slot];
+        if(keys[slot] == 0) {
+            keys[slot] = key;
+            size++;
+        }
+        values[slot] = value;
+        if(size * 2 > keys.length) {
+            grow();
+        }
+        return old;
+    }
+
+    // Remove the given reference from the map and return its cell, or
+    // null if it was not in the map.  The keys probed past the freed
+    // slot are shifted back into it so that lookups never need
+    // tombstones.
+    //
+    // TARGET COMPLEXITY: O(1) expected
+    public Cell remove(int key) {
+        if(key == 0) {
+            return null;
+        }
+        int slot = slotOf(key);
+        while(keys[slot] != key) {
+            if(keys[slot] == 0) {
+                return null;
+            }
+            slot = (slot + 1) & mask;
+        }
+        Cell value = values[slot];
+        size--;
+        int gap = slot;
+        for(int next = (gap + 1) & mask; keys[next] != 0; next = (next + 1) & mask) {
+            // a key may fill the gap when the gap lies on its probe
+            // sequence, that is between its home slot and its slot
+            int home = slotOf(keys[next]);
+            if(((next - home) & mask) >= ((next - gap) & mask)) {
+                keys[gap] = keys[next];
+                values[gap] = values[next];
+                gap = next;
+            }
+        }
+        keys[gap] = 0;
+        values[gap] = null;
+        return value;
+    }
+
+    // Return the first occupied position after the given one, or -1
+    // if there is none.  Pass -1 to get the first occupied position.
+    //
+    // TARGET COMPLEXITY: O(1) amortized over a whole iteration
+    public int next(int at) {
+        for(at++; at < keys.length; at++) {
+            if(keys[(at * STRIDE) & mask] != 0) {
+                return at;
+            }
+        }
+        return -1;
+    }
+
+    // Return the reference stored at the given occupied position
+    public int keyAt(int at) {
+        return keys[(at * STRIDE) & mask];
+    }
+
+    // Return the cell stored at the given occupied position
+    public Cell valueAt(int at) {
+        return values[(at * STRIDE) & mask];
+    }
+
+    // Home slot of a key, mixed as in IntIntMap
+    private int slotOf(int key) {
+        return (key * 0x9E3779B9) >>> shift;
+    }
+
+    // Double the table and reinsert every key
+    private void grow() {
+        int[] oldKeys = keys;
+        Cell[] oldValues = values;
+        keys = new int[oldKeys.length * 2];
+        values = new Cell[oldValues.length * 2];
+        mask = keys.length - 1;
+        shift--;
+        for(int i = 0; i < oldKeys.length; i++) {
+            if(oldKeys[i] != 0) {
+                int slot = slotOf(oldKeys[i]);
+                while(keys[slot] != 0) {
+                    slot = (slot + 1) & mask;
+                }
+                keys[slot] = oldKeys[i];
+                values[slot] = oldValues[i];
+            }
+        }
+    }
+}
@@ -0,0 +1,273 @@
+import java.util.concurrent.ConcurrentHashMap;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+// Compact address of a spreadsheet cell packed into a single int.
+// Cell IDs such as "BB8" are parsed once where they enter the
+// spreadsheet and from then on cells are keyed by these ints which
+// hash and compare far more cheaply than strings.
+//
+// The column letters are read as a bijective base 26 number (A=1,
+// Z=26, AA=27, ...) stored in the high bits and the row number less
+// one is stored in the low ROW_BITS bits:
+//
+//   ref = column << ROW_BITS | (row - 1)
+//
+// Columns run from A to MAX_COLUMN and rows from 1 to MAX_ROW, which
+// makes every packed reference a positive int so that NONE (0) can
+// stand for "no cell".
+//
+// Any well formatted ID is a valid cell, however large.  IDs outside
+// the packed range, such as "XFD1", are rare; parse() hands them
+// negative references in order of first use from a registry shared by
+// the whole process.  Only the paths creating cells or formulas call
+// parse(); lookup() never registers, so asking after IDs which name no
+// cell does not grow the registry, and reads of it take no lock.  Such
+// references are only meaningful within the process, writeRef() and
+// readRef() carry them over in files.  The class only holds static
+// methods.
+public class CellRef {
+
+    public static final int ROW_BITS = 20;
+    public static final int MAX_ROW = 1 << ROW_BITS;                // 1048576
+    public static final int MAX_COLUMN = (1 << (31 - ROW_BITS)) - 1; // 2047, column "BZS"
+
+    // Reference standing for no cell, never equal to a valid reference
+    public static final int NONE = 0;
+
+    // Written by writeRef() before the ID of a registered reference
+    private static final int WRITTEN_ID = -1;
+    // Longest ID readRef() accepts
+    private static final int MAX_ID_LENGTH = 1 << 16;
+
+    // Registry of IDs outside the packed range and its inverse,
+    // written under the class lock and read without it
+    private static final ConcurrentHashMap<String, Integer> registeredRefs = new ConcurrentHashMap<>();
+    private static final ConcurrentHashMap<Integer, String> registeredIDs = new ConcurrentHashMap<>();
+
+    private CellRef() {
+    }
+
+    // Return whether the given string is a well formatted cell ID
+    // matching the regular expression
+    //
+    //  ^[A-Z]+[1-9][0-9]*$
+    //
+    // checked in a single pass over its characters.
+    //
+    // Target Complexity: O(length of id)
+    public static boolean isWellFormed(String id) {
+        int length = id.length();
+        int i = 0;
+        while(i < length && id.charAt(i) >= 'A' && id.charAt(i) <= 'Z') {
+            i++;
+        }
+        if(i == 0 || i == length || id.charAt(i) < '1' || id.charAt(i) > '9') {
+            return false;
+        }
+        for(i++; i < length; i++) {
+            if(id.charAt(i) < '0' || id.charAt(i) > '9') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Return the reference of the given cell ID, registering an ID
+    // outside the packed range on first use.  Call it where a cell or a
+    // reference to one is created.  If the ID is not well formatted,
+    // throw a RuntimeException.
+    //
+    // Target Complexity: O(length of id)
+    public static int parse(String id) {
+        int ref = resolve(id, true);
+        if(ref == NONE) {
+            throw new RuntimeException
+                (String.format("Cell id '%s' is badly formatted", id));
+        }
+        return ref;
+    }
+
+    // Return the reference of the given cell ID for reading, or NONE
+    // instead of throwing when the ID is badly formatted or outside the
+    // packed range and never registered by parse().  Either way no
+    // cell of the spreadsheet has that ID.
+    //
+    // Target Complexity: O(length of id)
+    public static int lookup(String id) {
+        return resolve(id, false);
+    }
+
+    // Reference of the ID, registering it if asked and necessary
+    private static int resolve(String id, boolean register) {
+        if(id == null || !isWellFormed(id)) {
+            return NONE;
+        }
+        int length = id.length();
+        int i = 0;
+        int column = 0;
+        for(; id.charAt(i) >= 'A'; i++) {
+            column = column * 26 + (id.charAt(i) - 'A' + 1);
+            if(column > MAX_COLUMN) {
+                return registered(id, register);
+            }
+        }
+        int row = 0;
+        for(; i < length; i++) {
+            row = row * 10 + (id.charAt(i) - '0');
+            if(row > MAX_ROW) {
+                return registered(id, register);
+            }
+        }
+        return make(column, row);
+    }
+
+    // Return the reference of a well formatted ID outside the packed
+    // range, NONE if it is new and register is false
+    private static int registered(String id, boolean register) {
+        Integer ref = registeredRefs.get(id);
+        if(ref != null) {
+            return ref;
+        }
+        return register ? register(id) : NONE;
+    }
+
+    // Hand out the next reference to a new ID, unless another thread
+    // registered it first
+    private static synchronized int register(String id) {
+        Integer ref = registeredRefs.get(id);
+        if(ref == null) {
+            int count = registeredRefs.size();
+            if(count == Integer.MAX_VALUE) {
+                throw new RuntimeException("Too many cell ids out of the packed range");
+            }
+            ref = -(count + 1);
+            // the inverse first, so every reference handed out has an ID
+            registeredIDs.put(ref, id);
+            registeredRefs.put(id, ref);
+        }
+        return ref;
+    }
+
+    private static String registeredID(int ref) {
+        return registeredIDs.get(ref);
+    }
+
+    // Return whether the reference was packed from its ID rather than
+    // registered; only packed references have a column() and row().
+    //
+    // Target Complexity: O(1)
+    public static boolean isPacked(int ref) {
+        return ref > 0;
+    }
+
+    // Pack the given 1-based column and row numbers into a reference.
+    // They must be within MAX_COLUMN and MAX_ROW.
+    //
+    // Target Complexity: O(1)
+    public static int make(int column, int row) {
+        return column << ROW_BITS | (row - 1);
+    }
+
+    // Return the 1-based column number of the given packed reference.
+    //
+    // Target Complexity: O(1)
+    public static int column(int ref) {
+        return ref >>> ROW_BITS;
+    }
+
+    // Return the row number of the given packed reference.
+    //
+    // Target Complexity: O(1)
+    public static int row(int ref) {
+        return (ref & (MAX_ROW - 1)) + 1;
+    }
+
+    // Write the reference so that readRef() gives the reference of the
+    // same cell, even in another process: a packed reference or NONE as
+    // an int, a registered one as WRITTEN_ID followed by the length and
+    // ASCII characters of its ID.
+    public static void writeRef(DataOutput out, int ref) throws IOException {
+        if(ref >= 0) {
+            out.writeInt(ref);
+            return;
+        }
+        byte[] id = registeredID(ref).getBytes(StandardCharsets.US_ASCII);
+        out.writeInt(WRITTEN_ID);
+        out.writeInt(id.length);
+        out.write(id);
+    }
+
+    // Read a reference written by writeRef().  Raise an IOException if
+    // the data cannot be a reference.
+    public static int readRef(DataInput in) throws IOException {
+        int ref = in.readInt();
+        if(ref >= 0) {
+            if(ref != NONE && column(ref) == 0) {
+                throw new IOException("Bad cell reference " + ref);
+            }
+            return ref;
+        }
+        int length = in.readInt();
+        if(ref != WRITTEN_ID || length < 1 || length > MAX_ID_LENGTH) {
+            throw new IOException("Bad cell reference " + ref);
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        String id = new String(bytes, StandardCharsets.US_ASCII);
+        if(!isWellFormed(id)) {
+            throw new IOException("Bad cell id '" + id + "'");
+        }
+        return parse(id);
+    }
+
+    // Append the cell ID such as "BB8" for the given reference to the
+    // given output one character at a time, without building a String.
+    //
+    // Target Complexity: O(1)
+    public static void appendID(Appendable out, int ref) throws IOException {
+        if(!isPacked(ref)) {
+            out.append(registeredID(ref));
+            return;
+        }
+        int column = column(ref);
+        // bijective base 26 digits, at most three letters for MAX_COLUMN
+        int middle = (column - 1) / 26;
+        int first = middle > 0 ? (middle - 1) / 26 : 0;
+        if(first > 0) {
+            out.append((char) ('A' + (first - 1) % 26));
+        }
+        if(middle > 0) {
+            out.append((char) ('A' + (middle - 1) % 26));
+        }
+        out.append((char) ('A' + (column - 1) % 26));
+        int row = row(ref);
+        int divisor = 1;
+        while(divisor <= row / 10) {
+            divisor *= 10;
+        }
+        for(; divisor > 0; divisor /= 10) {
+            out.append((char) ('0' + row / divisor % 10));
+        }
+    }
+    
+    // Return the cell ID such as "BB8" for the given reference.
+    //
+    // Target Complexity: O(1)
+    public static String toID(int ref) {
+        if(!isPacked(ref)) {
+            return registeredID(ref);
+        }
+        char[] letters = new char[3];
+        int start = letters.length;
+        for(int column = column(ref); column > 0; column = (column - 1) / 26) {
+            letters[--start] = (char) ('A' + (column - 1) % 26);
+        }
+        StringBuilder builder = new StringBuilder(10);
+        builder.append(letters, start, letters.length - start);
+        builder.append(row(ref));
+        return builder.toString();
+    }
+}
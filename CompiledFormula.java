@@ -0,0 +1,388 @@
+import java.util.Map;
+import java.util.HashMap;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+// A formula tree of FNodes compiled into a flat postfix program for a
+// small stack machine.  Compiling happens once when a formula cell is
+// made; every later evaluation runs a tight loop over primitive arrays
+// instead of walking FNode objects and comparing TokenTypes.
+//
+// The program is a sequence of one byte opcodes.  PUSH_CONST and
+// PUSH_CELL carry an operand which indexes the constant pool or the
+// cell slots respectively; the arithmetic opcodes pop their operands
+// off the value stack and push the result.  For example
+//
+//   =A1 + -5.23 * (2 + A1)
+//
+// compiles to
+//
+//   code     : PUSH_CELL PUSH_CONST NEG PUSH_CONST PUSH_CELL ADD MUL ADD
+//   operands :     0         0       -     1          0      -   -   -
+//   constants: [5.23, 2.0]
+//   slots    : [A1]    (held as packed CellRefs)
+//
+// Compiled formulas are immutable once built.
+public class CompiledFormula {
+
+    // Opcodes of the stack machine
+    public static final byte PUSH_CONST = 0; // push constants[operand]
+    public static final byte PUSH_CELL  = 1; // push value of cell slots[operand]
+    public static final byte ADD        = 2;
+    public static final byte SUB        = 3;
+    public static final byte MUL        = 4;
+    public static final byte DIV        = 5;
+    public static final byte NEG        = 6;
+
+    private final byte[] code;        // opcodes in postfix order
+    private final int[] operands;     // operand of each opcode, 0 if unused
+    private final double[] constants; // constant pool of number literals
+    private final int[] slots;        // distinct CellRefs referenced
+    private final int maxStack;       // deepest value stack the program needs
+
+    // Value stack reused by every evaluation on the same thread so the
+    // evaluation itself does not allocate.  Evaluations nest when a
+    // formula reads a dirty formula cell, which is updated on the spot,
+    // so each evaluation works in its own frame above its caller's.
+    private static final ThreadLocal<ValueStack> STACK =
+        ThreadLocal.withInitial(ValueStack::new);
+
+    private static final class ValueStack {
+        double[] values = new double[16];
+        int used; // slots taken by the evaluations under way
+    }
+
+    // private constructor, use compile(root) to create compiled formulas
+    private CompiledFormula(byte[] code, int[] operands, double[] constants,
+                            int[] slots, int maxStack) {
+        this.code = code;
+        this.operands = operands;
+        this.constants = constants;
+        this.slots = slots;
+        this.maxStack = maxStack;
+    }
+
+    // Compile the formula tree rooted at the given node.  A null tree
+    // or a null child compiles to the constant 0 which mirrors how
+    // Cell.evalFormulaTree() treats missing nodes.
+    //
+    // Target Complexity: O(T)
+    //   T: the number of nodes in the formula tree
+    public static CompiledFormula compile(FNode root) {
+        Compiler compiler = new Compiler();
+        compiler.emitTree(root);
+        return compiler.finish();
+    }
+
+    // Evaluate the program using the given map to retrieve the number
+    // value of cells referenced by the formula, following the same
+    // rules as Cell.evalFormulaTree().  Instead of raising an exception
+    // the evaluation stops at the first unusable cell (blank, error,
+    // string) and returns Cell.ERROR, test for it with
+    // Cell.isErrorValue().
+    //
+    // Target Complexity: O(T)
+    public double evaluate(CellMap cellMap) {
+        ValueStack frames = STACK.get();
+        int base = frames.used;
+        if(frames.values.length < base + maxStack) {
+            // a caller keeps using the array it started with, its frame
+            // is never touched by the evaluations nested in it
+            frames.values = Arrays.copyOf(frames.values, Math.max(base + maxStack, 2 * frames.values.length));
+        }
+        frames.used = base + maxStack;
+        try {
+            return run(frames.values, base, cellMap);
+        } finally {
+            frames.used = base;
+        }
+    }
+
+    // Run the program with its value stack starting at stack[base]
+    private double run(double[] stack, int base, CellMap cellMap) {
+        int top = base - 1; // index of the top of the value stack
+        for(int pc = 0; pc < code.length; pc++) {
+            switch(code[pc]) {
+                case PUSH_CONST:
+                    stack[++top] = constants[operands[pc]];
+                    break;
+                case PUSH_CELL:
+                    double value = Cell.referenceValue(slots[operands[pc]], cellMap);
+                    if(Cell.isErrorValue(value)) {
+                        return value;
+                    }
+                    stack[++top] = value;
+                    break;
+                case ADD:
+                    top--;
+                    stack[top] = stack[top] + stack[top + 1];
+                    break;
+                case SUB:
+                    top--;
+                    stack[top] = stack[top] - stack[top + 1];
+                    break;
+                case MUL:
+                    top--;
+                    stack[top] = stack[top] * stack[top + 1];
+                    break;
+                case DIV:
+                    top--;
+                    stack[top] = stack[top] / stack[top + 1];
+                    break;
+                case NEG:
+                    stack[top] = -stack[top];
+                    break;
+                default:
+                    // something strange happened
+                    throw new RuntimeException("Bad opcode " + code[pc]);
+            }
+        }
+        return stack[top];
+    }
+
+    // Return the distinct cell references the formula refers to.  A
+    // reference to an ID which can never name a cell is CellRef.NONE.
+    // The array is shared and must not be modified.
+    //
+    // Target Complexity: O(1)
+    public int[] slots() {
+        return slots;
+    }
+
+    // Write the program to the given output for a snapshot so that it
+    // can be read back with readFrom() without parsing the formula.
+    //
+    // Target Complexity: O(T)
+    public void writeTo(DataOutput out) throws IOException {
+        out.writeInt(code.length);
+        out.write(code);
+        for(int pc = 0; pc < code.length; pc++) {
+            if(code[pc] == PUSH_CONST || code[pc] == PUSH_CELL) {
+                out.writeInt(operands[pc]);
+            }
+        }
+        out.writeInt(constants.length);
+        for(int i = 0; i < constants.length; i++) {
+            out.writeDouble(constants[i]);
+        }
+        out.writeInt(slots.length);
+        for(int i = 0; i < slots.length; i++) {
+            CellRef.writeRef(out, slots[i]);
+        }
+    }
+    
+    // Read a program written by writeTo().  The program is checked as
+    // it is read: every opcode and operand must be valid and the stack
+    // must hold exactly one value at the end, otherwise an IOException
+    // is raised, so a damaged snapshot cannot make evaluate() misbehave.
+    //
+    // Target Complexity: O(T)
+    public static CompiledFormula readFrom(DataInput in) throws IOException {
+        byte[] code = readCode(in, checkedLength(in.readInt()));
+        int[] operands = new int[code.length];
+        for(int pc = 0; pc < code.length; pc++) {
+            if(code[pc] == PUSH_CONST || code[pc] == PUSH_CELL) {
+                operands[pc] = in.readInt();
+            }
+        }
+        // every constant and slot is pushed by an instruction, which
+        // bounds their counts by data actually read
+        double[] constants = new double[checkedLength(in.readInt(), code.length)];
+        for(int i = 0; i < constants.length; i++) {
+            constants[i] = in.readDouble();
+        }
+        int[] slots = new int[checkedLength(in.readInt(), code.length)];
+        for(int i = 0; i < slots.length; i++) {
+            slots[i] = CellRef.readRef(in);
+        }
+        // replay the stack depth of the program
+        int depth = 0;
+        int maxStack = 1;
+        for(int pc = 0; pc < code.length; pc++) {
+            switch(code[pc]) {
+                case PUSH_CONST:
+                    if(operands[pc] < 0 || operands[pc] >= constants.length) {
+                        throw new IOException("Bad constant index in compiled formula");
+                    }
+                    depth++;
+                    break;
+                case PUSH_CELL:
+                    if(operands[pc] < 0 || operands[pc] >= slots.length) {
+                        throw new IOException("Bad cell slot in compiled formula");
+                    }
+                    depth++;
+                    break;
+                case ADD: case SUB: case MUL: case DIV:
+                    depth--;
+                    break;
+                case NEG:
+                    break;
+                default:
+                    throw new IOException("Bad opcode " + code[pc] + " in compiled formula");
+            }
+            if(depth < 1) {
+                throw new IOException("Stack underflow in compiled formula");
+            }
+            maxStack = Math.max(maxStack, depth);
+        }
+        if(depth != 1) {
+            throw new IOException("Compiled formula leaves " + depth + " values");
+        }
+        return new CompiledFormula(code, operands, constants, slots, maxStack);
+    }
+    
+    // A length read from a snapshot, which cannot be negative
+    private static int checkedLength(int length) throws IOException {
+        return checkedLength(length, Integer.MAX_VALUE);
+    }
+    
+    private static int checkedLength(int length, int limit) throws IOException {
+        if(length < 0 || length > limit) {
+            throw new IOException("Bad length " + length + " in compiled formula");
+        }
+        return length;
+    }
+    
+    // Read length bytes of code, growing the array as the bytes arrive
+    // so that a damaged length ends in an EOFException rather than a
+    // huge allocation
+    private static byte[] readCode(DataInput in, int length) throws IOException {
+        byte[] code = new byte[Math.min(length, 1024)];
+        in.readFully(code);
+        while(code.length < length) {
+            int read = code.length;
+            code = Arrays.copyOf(code, (int) Math.min(length, 2L * read));
+            in.readFully(code, read, code.length - read);
+        }
+        return code;
+    }
+    
+    // Produce a readable listing of the program, one instruction per
+    // line, for debugging.
+    public String toString() {
+        StringBuilder builder = new StringBuilder();
+        for(int pc = 0; pc < code.length; pc++) {
+            switch(code[pc]) {
+                case PUSH_CONST:
+                    builder.append("PUSH_CONST ").append(constants[operands[pc]]);
+                    break;
+                case PUSH_CELL:
+                    builder.append("PUSH_CELL ").append(CellRef.toID(slots[operands[pc]]));
+                    break;
+                case ADD: builder.append("ADD"); break;
+                case SUB: builder.append("SUB"); break;
+                case MUL: builder.append("MUL"); break;
+                case DIV: builder.append("DIV"); break;
+                case NEG: builder.append("NEG"); break;
+                default:  builder.append("?").append(code[pc]); break;
+            }
+            builder.append("\n");
+        }
+        return builder.toString();
+    }
+
+    // Accumulates the program during a post-order traversal of the
+    // formula tree.
+    private static class Compiler {
+        private byte[] code = new byte[16];
+        private int[] operands = new int[16];
+        private int size = 0;
+        private int depth = 0;    // stack depth after the last opcode
+        private int maxStack = 1; // deepest stack seen so far
+        private List<Double> constants = new ArrayList<>();
+        private List<Integer> slots = new ArrayList<>();
+        private Map<Integer, Integer> slotIndex = new HashMap<>();
+
+        // Emit the instructions for the subtree rooted at node.
+        private void emitTree(FNode node) {
+            if(node == null) {
+                emit(PUSH_CONST, constant(0.0), 1);
+                return;
+            }
+            switch(node.type) {
+                case Plus:
+                    emitBinary(node, ADD);
+                    break;
+                case Minus:
+                    emitBinary(node, SUB);
+                    break;
+                case Multiply:
+                    emitBinary(node, MUL);
+                    break;
+                case Divide:
+                    emitBinary(node, DIV);
+                    break;
+                case Negate:
+                    emitTree(node.left);
+                    emit(NEG, 0, 0);
+                    break;
+                case CellID:
+                    emit(PUSH_CELL, slot(node.ref), 1);
+                    break;
+                case Number:
+                    emit(PUSH_CONST, constant(node.number), 1);
+                    break;
+                default:
+                    // something strange happened
+                    throw new RuntimeException("Something strange happened");
+            }
+        }
+
+        // Emit both children of a binary node followed by its opcode
+        private void emitBinary(FNode node, byte opcode) {
+            emitTree(node.left);
+            emitTree(node.right);
+            emit(opcode, 0, -1);
+        }
+
+        // Append an instruction which changes the stack depth by delta
+        private void emit(byte opcode, int operand, int delta) {
+            if(size == code.length) {
+                code = Arrays.copyOf(code, size * 2);
+                operands = Arrays.copyOf(operands, size * 2);
+            }
+            code[size] = opcode;
+            operands[size] = operand;
+            size++;
+            depth += delta;
+            maxStack = Math.max(maxStack, depth);
+        }
+
+        // Index of the given value in the constant pool
+        private int constant(double value) {
+            constants.add(value);
+            return constants.size() - 1;
+        }
+
+        // Index of the slot for the given cell reference, shared by
+        // every reference to the same cell
+        private int slot(int ref) {
+            Integer index = slotIndex.get(ref);
+            if(index == null) {
+                index = slots.size();
+                slots.add(ref);
+                slotIndex.put(ref, index);
+            }
+            return index;
+        }
+
+        // Build the immutable compiled formula
+        private CompiledFormula finish() {
+            double[] pool = new double[constants.size()];
+            for(int i = 0; i < pool.length; i++) {
+                pool[i] = constants.get(i);
+            }
+            int[] refs = new int[slots.size()];
+            for(int i = 0; i < refs.length; i++) {
+                refs[i] = slots.get(i);
+            }
+            return new CompiledFormula(Arrays.copyOf(code, size),
+                                       Arrays.copyOf(operands, size),
+                                       pool, refs, maxStack);
+        }
+    }
+}
@@ -0,0 +1,35 @@
+import java.util.*;
+import java.io.*;
+
+
+// Checks compiled formulas against the formula tree evaluation on a
+// sheet where a formula reads a dirty formula cell after other
+// operands are already on the value stack.  The dirty cell is updated
+// by a nested evaluation which must leave those operands alone.
+public class CompiledFormulaDemo{
+
+  public static void main(String args[]){
+    PrintStream o = System.out;
+
+    CellMap cellMap = new CellMap();
+    Cell a1 = Cell.make("10");
+    Cell b1 = Cell.make("=A1*2");
+    Cell c1 = Cell.make("=1+B1");
+    cellMap.put(CellRef.parse("A1"),a1);
+    cellMap.put(CellRef.parse("B1"),b1);
+    cellMap.put(CellRef.parse("C1"),c1);
+
+    // B1 has never been updated, C1 brings it up to date on the way
+    b1.markDirty();
+    c1.markDirty();
+    c1.updateValue(cellMap);
+    double tree = Cell.evalFormulaTree(FNode.parseFormulaString("=1+B1"),cellMap);
+
+    o.println("C1 compiled : "+c1.doubleValue());
+    o.println("C1 tree     : "+tree);
+    if(c1.doubleValue() != 21.0 || tree != 21.0){
+      throw new RuntimeException("Expected C1 = 21.0");
+    }
+    o.println("OK");
+  }
+}
@@ -2,18 +2,81 @@ import java.util.Map;
 import java.util.Set;
 import java.util.List;
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.Iterator;
+import java.util.Collections;
+import java.util.Arrays;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 
+// Dependency graph between spreadsheet cells.  Nodes are cells
+// addressed by their packed CellRef; the methods taking String IDs
+// parse them once and delegate to the int versions.
+//
+// Storage is primitive throughout.  Each cell reference seen in a link
+// is given a dense node number through an IntIntMap and everything
+// about a node lives in arrays indexed by that number: its CellRef,
+// its position in the topological order, and its upstream and
+// downstream neighbor lists as int arrays of node numbers.  Traversals
+// step from node to node by array indexing without hashing, and a link
+// costs two ints in each direction instead of entries in two HashSets.
+//
+// Only cells taking part in some link have a node.  Looking an ID up
+// never creates one, and a node left without links when links are
+// removed is released and its number reused, so the memory held stays
+// proportional to the links of the sheet.
 public class DAG{
     
-    private Map<String, Set<String>> upstreamLinksMap; // map to stroe the nodes and their upstreamLinks
-    private Map<String, Set<String>> downstreamLinksMap; // map to store the nodes and their downstreamlinks
+    private static final int[] NO_LINKS = new int[0];
+    // addAll() inserts the links of a batch one at a time while the
+    // DAG has at least this many nodes per link in the batch
+    private static final int NODES_PER_BATCH_LINK = 8;
+    
+    private IntIntMap nodeOf;   // CellRef to node number
+    private int nodeCount;      // number of node numbers handed out
+    private int[] freeNodes;    // released node numbers to reuse
+    private int freeCount;      // used length of freeNodes
+    private int[] ref;          // CellRef of each node
+    private int[][] upLinks;    // upstream neighbors of each node
+    private int[] upCount;      // used length of each upLinks array
+    // upPos[n][i] is the index of n in downLinks[upLinks[n][i]] so that
+    // a link can be taken out of the downstream list without a search
+    private int[][] upPos;
+    private int[][] downLinks;  // downstream neighbors of each node
+    private int[] downCount;    // used length of each downLinks array
+    // Position of each node in a topological order of the DAG,
+    // maintained incrementally as links are added. Positions need not
+    // be contiguous.
+    private int[] ord;
+    private int nextOrd; // next free position at the end of the order
+    // Scratch space for searches: a node is visited in the current
+    // search when mark[n] == epoch, parent records how it was reached
+    private int[] mark;
+    private int[] parent;
+    private int epoch;
+    private int[] level; // scratch for downstreamLevels()
+    
     // Construct an empty DAG
     public DAG() {
-        upstreamLinksMap = new HashMap<>();
-        downstreamLinksMap = new HashMap<>();
+        nodeOf = new IntIntMap();
+        nodeCount = 0;
+        freeNodes = NO_LINKS;
+        freeCount = 0;
+        int capacity = 16;
+        ref = new int[capacity];
+        upLinks = new int[capacity][];
+        upCount = new int[capacity];
+        upPos = new int[capacity][];
+        downLinks = new int[capacity][];
+        downCount = new int[capacity];
+        ord = new int[capacity];
+        mark = new int[capacity];
+        parent = new int[capacity];
+        level = new int[capacity];
+        nextOrd = 0;
+        epoch = 0;
     }
     
     // Produce a string representaton of the DAG which shows the
@@ -34,58 +97,247 @@ public class DAG{
     public String toString() {
         StringBuilder builder = new StringBuilder();
         builder.append("Upstream Links:\n");
-        // get a set from the upstreamLinksMap that contains keys and values
-        Set<Map.Entry<String, Set<String>>> upstreamSet = upstreamLinksMap.entrySet();
-        Iterator<Map.Entry<String, Set<String>>> iterator = upstreamSet.iterator();
-        // iterator to iterate the set
-        while(iterator.hasNext()) {
-            Map.Entry<String, Set<String>> upstreamMapEntry = iterator.next();
+        for(int node = 0; node < nodeCount; node++) {
             // if the upstreamLinks of a node isn't empty
-            if(!upstreamMapEntry.getValue().isEmpty()) {
-                builder.append(String.format("%4s",upstreamMapEntry.getKey()) + " : "); // append the node to the builder
-                builder.append(upstreamMapEntry.getValue()); // append the node's upstreamLinks
+            if(upCount[node] > 0) {
+                builder.append(String.format("%4s", CellRef.toID(ref[node])) + " : "); // append the node to the builder
+                appendIDs(builder, upLinks[node], upCount[node]); // append the node's upstreamLinks
                 builder.append("\n");
             }
         }
         
         builder.append("Downstream Links:\n");
-        // get a set from the downstreamLinksMap that contains keys and values
-        Set<Map.Entry<String, Set<String>>> downstreamSet = downstreamLinksMap.entrySet(); 
-        iterator = downstreamSet.iterator(); 
-        while(iterator.hasNext()) {
-            Map.Entry<String, Set<String>> downstreamMapEntry = iterator.next();
+        for(int node = 0; node < nodeCount; node++) {
             // if the downstreamLinks of a node isn't empty
-            if(!downstreamMapEntry.getValue().isEmpty()) {
-                builder.append(String.format("%4s",downstreamMapEntry.getKey()) + " : "); // append the node
-                builder.append(downstreamMapEntry.getValue()); // append the node's upstreamLinks
+            if(downCount[node] > 0) {
+                builder.append(String.format("%4s", CellRef.toID(ref[node])) + " : "); // append the node
+                appendIDs(builder, downLinks[node], downCount[node]); // append the node's downstreamLinks
                 builder.append("\n");
             }
         }
         return builder.toString();
     }
     
+    // Append the IDs of the first count nodes of the list as [A1, B2]
+    private void appendIDs(StringBuilder builder, int[] nodes, int count) {
+        builder.append('[');
+        for(int i = 0; i < count; i++) {
+            if(i > 0) {
+                builder.append(", ");
+            }
+            builder.append(CellRef.toID(ref[nodes[i]]));
+        }
+        builder.append(']');
+    }
+    
     // Return the upstream links associated with the given ID.  If there
-    // are no links associated with ID, return the empty set.
+    // are no links associated with ID, return the shared immutable
+    // empty set without allocating.  Otherwise the returned set is a
+    // copy holding cell IDs.
     //
-    // TARGET COMPLEXITY: O(1)
+    // TARGET COMPLEXITY: O(L_i)
+    //   L_i : number of upstream links node id has
     public Set<String> getUpstreamLinks(String id) {
-        // If there are no links associated with ID,
-        // map ID to a new empty set
-        if(upstreamLinksMap.get(id) == null) {
-            upstreamLinksMap.put(id, new HashSet<String>());
+        int node = nodeOf.get(CellRef.lookup(id), -1);
+        if(node < 0 || upCount[node] == 0) {
+            return Collections.emptySet();
         }
-        return upstreamLinksMap.get(id);
+        return toIDs(upLinks[node], upCount[node]);
     }
     
     // Return the downstream links associated with the given ID.  If
-    // there are no links associated with ID, return the empty set.
+    // there are no links associated with ID, return the shared
+    // immutable empty set without allocating.  Otherwise the returned
+    // set is a copy holding cell IDs.
     //
-    // TARGET COMPLEXITY: O(1)
+    // TARGET COMPLEXITY: O(L_i)
+    //   L_i : number of downstream links node id has
     public Set<String> getDownstreamLinks(String id) {
-        if(downstreamLinksMap.get(id) == null) {
-            downstreamLinksMap.put(id, new HashSet<String>());
+        int node = nodeOf.get(CellRef.lookup(id), -1);
+        if(node < 0 || downCount[node] == 0) {
+            return Collections.emptySet();
         }
-        return downstreamLinksMap.get(id);
+        return toIDs(downLinks[node], downCount[node]);
+    }
+    
+    // Convert the first count nodes of a list to a set of cell IDs
+    private Set<String> toIDs(int[] nodes, int count) {
+        Set<String> ids = new LinkedHashSet<>();
+        for(int i = 0; i < count; i++) {
+            ids.add(CellRef.toID(ref[nodes[i]]));
+        }
+        return ids;
+    }
+    
+    // Return the CellRefs of the cells downstream of the given cell
+    // reference, directly or through other cells, in topological order:
+    // each cell comes after every cell it depends on.  The given cell
+    // itself is not included.
+    //
+    // TARGET COMPLEXITY: O(D + L_D)
+    //   D   : number of cells downstream of id
+    //   L_D : number of links between those cells
+    public int[] downstreamOrder(int id) {
+        int start = nodeOf.get(id, -1);
+        if(start < 0 || downCount[start] == 0) {
+            return NO_LINKS;
+        }
+        // start finishes last and leads the order, leave it out
+        return toRefs(downstreamNodes(new int[]{start}, 1), 1);
+    }
+    
+    // Return the CellRefs of the given cells and of every cell
+    // downstream of any of them in topological order.  Given cells
+    // without links in the DAG are left out.
+    //
+    // TARGET COMPLEXITY: O(D + L_D)
+    //   D   : number of cells given or downstream of them
+    //   L_D : number of links between those cells
+    public int[] downstreamOrder(int[] ids) {
+        int[] starts = startNodes(ids);
+        return toRefs(downstreamNodes(starts, starts.length), 0);
+    }
+    
+    // Return the CellRefs of the cells downstream of the given cell
+    // reference grouped by dependency level.  Level 0 holds the cells
+    // depending on id only through links from id or from cells outside
+    // the downstream set, and every other cell sits one level past the
+    // deepest of its upstream cells in the set.  Cells of the same
+    // level never depend on each other, so a level may be updated in
+    // any order or in parallel once all earlier levels are done.
+    //
+    // TARGET COMPLEXITY: O(D + L_D)
+    public int[][] downstreamLevels(int id) {
+        int start = nodeOf.get(id, -1);
+        if(start < 0 || downCount[start] == 0) {
+            return new int[0][];
+        }
+        int[] nodes = downstreamNodes(new int[]{start}, 1);
+        // start is at level -1 so that its own downstream cells begin
+        // at level 0
+        level[start] = -1;
+        return levelsOf(nodes, 1);
+    }
+    
+    // Return the CellRefs of the given cells and of every cell
+    // downstream of any of them grouped by dependency level, as
+    // downstreamLevels(int).  Given cells without links in the DAG are
+    // left out.
+    //
+    // TARGET COMPLEXITY: O(D + L_D)
+    public int[][] downstreamLevels(int[] ids) {
+        int[] starts = startNodes(ids);
+        return levelsOf(downstreamNodes(starts, starts.length), 0);
+    }
+    
+    // Node numbers of the given CellRefs which have a node
+    private int[] startNodes(int[] ids) {
+        int[] starts = new int[ids.length];
+        int count = 0;
+        for(int i = 0; i < ids.length; i++) {
+            int node = nodeOf.get(ids[i], -1);
+            if(node >= 0) {
+                starts[count++] = node;
+            }
+        }
+        return Arrays.copyOf(starts, count);
+    }
+    
+    // CellRefs of the nodes of the array from the given index on
+    private int[] toRefs(int[] nodes, int from) {
+        int[] refs = new int[nodes.length - from];
+        for(int i = 0; i < refs.length; i++) {
+            refs[i] = ref[nodes[from + i]];
+        }
+        return refs;
+    }
+    
+    // Group the CellRefs of nodes[from..] by dependency level.  The
+    // nodes must be in topological order and the set they belong to
+    // marked with the current epoch; nodes before from must already
+    // have their level.
+    private int[][] levelsOf(int[] nodes, int from) {
+        int stamp = epoch;
+        int levelCount = 0;
+        for(int i = from; i < nodes.length; i++) {
+            int node = nodes[i];
+            int deepest = 0;
+            for(int j = 0; j < upCount[node]; j++) {
+                int upstream = upLinks[node][j];
+                if(mark[upstream] == stamp) {
+                    deepest = Math.max(deepest, level[upstream] + 1);
+                }
+            }
+            level[node] = deepest;
+            levelCount = Math.max(levelCount, deepest + 1);
+        }
+        // bucket the cells by level keeping the topological order
+        int[] sizes = new int[levelCount];
+        for(int i = from; i < nodes.length; i++) {
+            sizes[level[nodes[i]]]++;
+        }
+        int[][] levels = new int[levelCount][];
+        for(int l = 0; l < levelCount; l++) {
+            levels[l] = new int[sizes[l]];
+            sizes[l] = 0;
+        }
+        for(int i = from; i < nodes.length; i++) {
+            int l = level[nodes[i]];
+            levels[l][sizes[l]++] = ref[nodes[i]];
+        }
+        return levels;
+    }
+    
+    // Return the first count nodes of starts and every node downstream
+    // of them in topological order, leaving each node returned marked
+    // with the current epoch.  The traversal is an iterative depth
+    // first search from each start not yet reached, the reverse of its
+    // post-order is the result.
+    private int[] downstreamNodes(int[] starts, int count) {
+        int stamp = nextEpoch();
+        int[] postOrder = new int[16];
+        int finished = 0;
+        // stack of nodes with the index of the next neighbor to visit
+        int[] stack = new int[16];
+        int[] next = new int[16];
+        for(int s = 0; s < count; s++) {
+            if(mark[starts[s]] == stamp) {
+                continue;
+            }
+            mark[starts[s]] = stamp;
+            stack[0] = starts[s];
+            next[0] = 0;
+            int depth = 1;
+            while(depth > 0) {
+                int node = stack[depth - 1];
+                if(next[depth - 1] < downCount[node]) {
+                    int child = downLinks[node][next[depth - 1]++];
+                    if(mark[child] != stamp) {
+                        // first time we reach this cell, descend into it
+                        mark[child] = stamp;
+                        if(depth == stack.length) {
+                            stack = Arrays.copyOf(stack, depth * 2);
+                            next = Arrays.copyOf(next, depth * 2);
+                        }
+                        stack[depth] = child;
+                        next[depth] = 0;
+                        depth++;
+                    }
+                } else {
+                    // all downstream cells finished
+                    depth--;
+                    if(finished == postOrder.length) {
+                        postOrder = Arrays.copyOf(postOrder, finished * 2);
+                    }
+                    postOrder[finished++] = node;
+                }
+            }
+        }
+        int[] order = new int[finished];
+        for(int i = 0; i < finished; i++) {
+            order[i] = postOrder[finished - 1 - i];
+        }
+        return order;
     }
     
     // Class representing a cycle that is detected on adding to the
@@ -103,84 +355,631 @@ public class DAG{
     // If the upstreamIDs argument is either null or empty, remove the
     // node with the given ID.
     //
-    // After adding the new node, check whether it has created any
-    // cycles through use of the checkForCycles() method.  If a cycle is
-    // created, revert the DAG back to its original form so it appears
-    // there is no change and raise a CycleException with a message
-    // showing the cycle that would have resulted from the addition.
+    // Each new link is inserted with insertLink() which keeps the
+    // topological order of the DAG up to date and detects any cycle
+    // the link would close.  If a cycle is created, revert the DAG back
+    // to its original form so it appears there is no change and raise
+    // a CycleException with a message showing the cycle that would have
+    // resulted from the addition.
     // 
-    // TARGET RUNTIME COMPLEXITY: O(N + L)
-    // MEMORY OVERHEAD: O(P)
-    //   N : number of nodes in the DAG
-    //   L : number of upstream links in the DAG
-    //   P : longest path in the DAG starting from node id
+    // TARGET RUNTIME COMPLEXITY: O(U * (A log A))
+    //   U : number of upstream links of id
+    //   A : number of nodes whose position in the topological order
+    //       lies between the ends of a link inserted out of order
     public void add(String id, Set<String> upstreamIDs) {
-        Set<String> preUpstreamLinks = getUpstreamLinks(id); // get original UpstreamLinks of id
-        // remove id in any case
-        remove(id);
-        if(upstreamIDs == null || upstreamIDs.isEmpty()) {
+        int[] upstreamRefs = new int[upstreamIDs == null ? 0 : upstreamIDs.size()];
+        if(upstreamIDs != null) {
+            int i = 0;
+            Iterator<String> iterator = upstreamIDs.iterator();
+            while(iterator.hasNext()) {
+                upstreamRefs[i++] = CellRef.parse(iterator.next());
+            }
+        }
+        add(CellRef.parse(id), upstreamRefs);
+    }
+    
+    // Add a node to the DAG by cell reference, as add(String, Set).
+    public void add(int id, int[] upstreamRefs) {
+        int node = nodeOf.get(id, -1);
+        // copy the original UpstreamLinks of id as CellRefs, upstream
+        // nodes left without links are released by unlinkAll() and
+        // their numbers may be handed out again below
+        int[] preUpstreamRefs = NO_LINKS;
+        if(node >= 0) {
+            preUpstreamRefs = new int[upCount[node]];
+            for(int i = 0; i < preUpstreamRefs.length; i++) {
+                preUpstreamRefs[i] = ref[upLinks[node][i]];
+            }
+            // remove id in any case
+            unlinkAll(node);
+        }
+        if(upstreamRefs == null || upstreamRefs.length == 0) {
+            if(node >= 0) {
+                releaseIfUnlinked(node);
+            }
             return;
         }
-        // Add id and its upstreamIDs to the upstreamLinksMap
-        upstreamLinksMap.put(id, upstreamIDs);
+        if(node < 0) {
+            node = createNode(id);
+        }
         
-        Iterator<String> iterator = upstreamIDs.iterator();
-        // Add the new node to the downstream links of each upstream node
-        while(iterator.hasNext()) {
-            String oneUpstreamID = iterator.next();
-            Set<String> downstreamLinks = getDownstreamLinks(oneUpstreamID);
-            downstreamLinks.add(id);
+        // Add the new links one at a time so that the topological order
+        // is valid for every link present before the next is inserted
+        for(int i = 0; i < upstreamRefs.length; i++) {
+            int upstream = nodeOf.get(upstreamRefs[i], -1);
+            if(upstream < 0) {
+                upstream = createNode(upstreamRefs[i]);
+            } else if(indexOf(upLinks[node], upCount[node], upstream) >= 0) {
+                // repeated reference, already linked
+                continue;
+            }
+            List<String> path = insertLink(upstream, node);
+            if(path != null) {
+                // If a cycle is created, revert the DAG back to its original form so it appears
+                // there is no change and raise a CycleException with a message
+                // showing the cycle that would have resulted from the addition.
+                
+                // This is like adding the id again
+                // but with preUpstreamRefs 
+                // so that we can revert the DAG back.
+                // These links were acyclic before and cannot fail.
+                unlinkAll(node);
+                for(int j = 0; j < preUpstreamRefs.length; j++) {
+                    int preUpstream = nodeOf.get(preUpstreamRefs[j], -1);
+                    if(preUpstream < 0) {
+                        preUpstream = createNode(preUpstreamRefs[j]);
+                    }
+                    insertLink(preUpstream, node);
+                }
+                releaseIfUnlinked(node);
+                
+                StringBuilder builder = new StringBuilder();
+                builder.append(path); // the path of the cycle
+                throw new CycleException(builder.toString());
+            }
+        }
+    }
+    
+    // Set the upstream links of many nodes at once: ids[i] gets the
+    // links upstreamRefs[i], an empty or null entry removes the node.
+    // A later entry for the same id replaces an earlier one.  The result
+    // is the same as calling add() for each pair.  A batch small next
+    // to the DAG is applied just so, each link inserted in order
+    // touching only the nodes between its ends.  Otherwise, or when an
+    // entry of the small batch closes a cycle which a later entry may
+    // still break, the links are swapped in without ordering them, and
+    // a single pass of Kahn's algorithm over the whole DAG then both
+    // checks for cycles and rebuilds the topological order.  That pays
+    // off for large batches and bulk loads where inserting links one at
+    // a time would move the same nodes around the order over and over.
+    //
+    // If the combined links contain a cycle every entry is reverted so
+    // that the DAG appears unchanged, and a CycleException with a
+    // message showing one cycle, starting at one of the given ids, is
+    // raised.
+    //
+    // TARGET RUNTIME COMPLEXITY: O(L * (A log A)) for a small batch,
+    // otherwise O(V + E)
+    //   L : number of links in the batch
+    //   A : number of nodes whose position in the topological order
+    //       lies between the ends of a link inserted out of order
+    //   V : number of nodes in the DAG
+    //   E : number of links in the DAG
+    public void addAll(int[] ids, int[][] upstreamRefs) {
+        long batchLinks = ids.length;
+        for(int i = 0; i < ids.length; i++) {
+            batchLinks += upstreamRefs[i] == null ? 0 : upstreamRefs[i].length;
+        }
+        if(batchLinks * NODES_PER_BATCH_LINK <= nodeOf.size() && addEach(ids, upstreamRefs)) {
+            return;
+        }
+        
+        // original upstream links of each entry as CellRefs, and every
+        // node whose links change to release at the end if unlinked
+        int[][] preUpstreamRefs = new int[ids.length][];
+        boolean[] selfLinked = new boolean[ids.length];
+        int[] touched = new int[16];
+        int touchedCount = 0;
+        for(int i = 0; i < ids.length; i++) {
+            int node = nodeOf.get(ids[i], -1);
+            if(node < 0) {
+                node = createNode(ids[i]);
+            }
+            preUpstreamRefs[i] = new int[upCount[node]];
+            for(int j = 0; j < upCount[node]; j++) {
+                preUpstreamRefs[i][j] = ref[upLinks[node][j]];
+            }
+            int[] refs = upstreamRefs[i] == null ? NO_LINKS : upstreamRefs[i];
+            if(touchedCount + upCount[node] + refs.length + 1 > touched.length) {
+                touched = Arrays.copyOf(touched, 2 * (touchedCount + upCount[node] + refs.length + 1));
+            }
+            touched[touchedCount++] = node;
+            System.arraycopy(upLinks[node], 0, touched, touchedCount, upCount[node]);
+            touchedCount += upCount[node];
+            // nodes are released only once the batch is settled so the
+            // saved CellRefs keep their nodes and positions
+            unlinkAll(node, false);
+            for(int j = 0; j < refs.length; j++) {
+                int upstream = nodeOf.get(refs[j], -1);
+                if(upstream < 0) {
+                    upstream = createNode(refs[j]);
+                } else if(indexOf(upLinks[node], upCount[node], upstream) >= 0) {
+                    // repeated reference, already linked
+                    continue;
+                }
+                touched[touchedCount++] = upstream;
+                if(upstream != node) {
+                    link(upstream, node);
+                } else {
+                    // a self reference is kept out of the lists, it is
+                    // a cycle unless a later entry replaces it
+                    selfLinked[i] = true;
+                }
+            }
         }
         
-        // The search is started at a designated node, usually the new node which is added
-        // So we add the new node to the path as first element,
-        // and start searching if there is a cycle
+        List<String> path = selfLinkedPath(ids, selfLinked);
+        if(path == null) {
+            path = reorder(ids);
+        }
+        if(path != null) {
+            revertAll(ids, preUpstreamRefs, touched, touchedCount);
+            throw new CycleException(path.toString());
+        }
+        for(int i = 0; i < touchedCount; i++) {
+            releaseIfUnlinked(touched[i]);
+        }
+    }
+    
+    // Apply the entries of addAll() one at a time with add().  If an
+    // entry creates a cycle the entries applied so far are undone in
+    // reverse order, each back to a state which was acyclic, and false
+    // is returned.
+    private boolean addEach(int[] ids, int[][] upstreamRefs) {
+        int[][] preUpstreamRefs = new int[ids.length][];
+        for(int i = 0; i < ids.length; i++) {
+            int node = nodeOf.get(ids[i], -1);
+            preUpstreamRefs[i] = NO_LINKS;
+            if(node >= 0) {
+                preUpstreamRefs[i] = new int[upCount[node]];
+                for(int j = 0; j < upCount[node]; j++) {
+                    preUpstreamRefs[i][j] = ref[upLinks[node][j]];
+                }
+            }
+            try {
+                add(ids[i], upstreamRefs[i]);
+            } catch(CycleException e) {
+                for(int j = i - 1; j >= 0; j--) {
+                    add(ids[j], preUpstreamRefs[j]);
+                }
+                return false;
+            }
+        }
+        return true;
+    }
+    
+    // Return the cycle [id, id] for the first id whose last entry in
+    // addAll() refers to the id itself, or null if there is none.
+    private List<String> selfLinkedPath(int[] ids, boolean[] selfLinked) {
+        int stamp = nextEpoch();
+        List<String> path = null;
+        for(int i = ids.length - 1; i >= 0; i--) {
+            int node = nodeOf.get(ids[i], -1);
+            if(mark[node] != stamp) {
+                // the last entry for this id
+                mark[node] = stamp;
+                if(selfLinked[i]) {
+                    path = new ArrayList<>();
+                    path.add(CellRef.toID(ids[i]));
+                    path.add(CellRef.toID(ids[i]));
+                }
+            }
+        }
+        return path;
+    }
+    
+    // Undo the entries of addAll() in reverse order and
+    // release the touched nodes left without links.  The positions of
+    // the original links were never changed and are valid again.
+    private void revertAll(int[] ids, int[][] preUpstreamRefs,
+                           int[] touched, int touchedCount) {
+        for(int i = ids.length - 1; i >= 0; i--) {
+            int node = nodeOf.get(ids[i], -1);
+            unlinkAll(node, false);
+            for(int j = 0; j < preUpstreamRefs[i].length; j++) {
+                link(nodeOf.get(preUpstreamRefs[i][j], -1), node);
+            }
+        }
+        for(int i = 0; i < touchedCount; i++) {
+            releaseIfUnlinked(touched[i]);
+        }
+    }
+    
+    // Rebuild the topological order of every node with Kahn's
+    // algorithm: repeatedly take a node whose upstream nodes have all
+    // been taken.  If some nodes can never be taken they lie on or
+    // downstream of a cycle; the order is left untouched and one cycle
+    // is returned as a path of cell IDs following upstream links, which
+    // starts and ends at one of the given ids.  Return null when there
+    // is no cycle.
+    private List<String> reorder(int[] ids) {
+        int[] waiting = new int[nodeCount]; // upstream nodes not yet taken
+        int[] queue = new int[nodeCount];
+        int head = 0;
+        int tail = 0;
+        int live = 0;
+        for(int node = 0; node < nodeCount; node++) {
+            if(ref[node] == CellRef.NONE) {
+                // released node
+                continue;
+            }
+            live++;
+            waiting[node] = upCount[node];
+            if(waiting[node] == 0) {
+                queue[tail++] = node;
+            }
+        }
+        while(head < tail) {
+            int node = queue[head++];
+            for(int i = 0; i < downCount[node]; i++) {
+                int next = downLinks[node][i];
+                if(--waiting[next] == 0) {
+                    queue[tail++] = next;
+                }
+            }
+        }
+        if(tail == live) {
+            // every node taken, the queue is the new order
+            for(int i = 0; i < tail; i++) {
+                ord[queue[i]] = i;
+            }
+            nextOrd = tail;
+            return null;
+        }
+        
+        // Every node not taken has an upstream node not taken.  Start
+        // from one of the ids still waiting, a cycle needs a new link,
+        // and follow such upstream nodes until one repeats.
+        int[] sortedIds = ids.clone();
+        Arrays.sort(sortedIds);
+        int node = -1;
+        for(int i = 0; i < ids.length && node < 0; i++) {
+            int candidate = nodeOf.get(ids[i], -1);
+            if(waiting[candidate] > 0) {
+                node = candidate;
+            }
+        }
+        int stamp = nextEpoch();
+        List<Integer> walk = new ArrayList<>();
+        while(mark[node] != stamp) {
+            mark[node] = stamp;
+            level[node] = walk.size();
+            walk.add(node);
+            int i = 0;
+            while(waiting[upLinks[node][i]] == 0) {
+                i++;
+            }
+            node = upLinks[node][i];
+        }
+        List<Integer> cycle = walk.subList(level[node], walk.size());
+        // rotate the cycle to start at one of the given ids
+        int first = 0;
+        while(Arrays.binarySearch(sortedIds, ref[cycle.get(first)]) < 0) {
+            first++;
+        }
         List<String> path = new ArrayList<>();
-        path.add(id);
-        boolean cycle = checkForCycles(upstreamLinksMap, path);
-        if(cycle) {
-            // If a cycle is created, revert the DAG back to its original form so it appears
-            // there is no change and raise a CycleException with a message
-            // showing the cycle that would have resulted from the addition.
-            
-            // This is like adding the id again
-            // but with preUpstreamLinks 
-            // so that we can revert the DAG back
-            remove(id); 
-            // Add id and preUpstreamLinks to the upstreamLinksMap
-            upstreamLinksMap.put(id, preUpstreamLinks);
-            
-            iterator = preUpstreamLinks.iterator();
-            // Add the new node to the downstream links of each upstream node
-            while(iterator.hasNext()) {
-                String oneUpstreamID = iterator.next();
-                Set<String> downstreamLinks = getDownstreamLinks(oneUpstreamID);
-                downstreamLinks.add(id);
+        for(int i = 0; i <= cycle.size(); i++) {
+            path.add(CellRef.toID(ref[cycle.get((first + i) % cycle.size())]));
+        }
+        return path;
+    }
+    
+    // Return the position of the given ID in the topological order
+    // maintained by the DAG.  Every node is positioned after all of its
+    // upstream nodes.  IDs which were never linked have no position and
+    // return -1.
+    //
+    // TARGET COMPLEXITY: O(1)
+    public int topologicalIndex(String id) {
+        return topologicalIndex(CellRef.lookup(id));
+    }
+    
+    // Return the position of the given cell reference in the
+    // topological order, as topologicalIndex(String).
+    public int topologicalIndex(int id) {
+        int node = nodeOf.get(id, -1);
+        if(node < 0) {
+            return -1;
+        }
+        return ord[node];
+    }
+    
+    // Hand out a node number to the given cell reference, reusing a
+    // released one when possible, and place it at the end of the
+    // topological order.
+    private int createNode(int id) {
+        if(freeCount > 0) {
+            return initNode(freeNodes[--freeCount], id);
+        }
+        if(nodeCount == ref.length) {
+            int capacity = nodeCount * 2;
+            ref = Arrays.copyOf(ref, capacity);
+            upLinks = Arrays.copyOf(upLinks, capacity);
+            upCount = Arrays.copyOf(upCount, capacity);
+            upPos = Arrays.copyOf(upPos, capacity);
+            downLinks = Arrays.copyOf(downLinks, capacity);
+            downCount = Arrays.copyOf(downCount, capacity);
+            ord = Arrays.copyOf(ord, capacity);
+            mark = Arrays.copyOf(mark, capacity);
+            parent = Arrays.copyOf(parent, capacity);
+            level = Arrays.copyOf(level, capacity);
+        }
+        return initNode(nodeCount++, id);
+    }
+    
+    // Set up the given node number as a node without links for id
+    private int initNode(int node, int id) {
+        ref[node] = id;
+        upLinks[node] = NO_LINKS;
+        upPos[node] = NO_LINKS;
+        upCount[node] = 0;
+        downLinks[node] = NO_LINKS;
+        downCount[node] = 0;
+        ord[node] = nextOrd++;
+        mark[node] = 0;
+        nodeOf.put(id, node);
+        return node;
+    }
+    
+    // Release the node if it has no links left: forget its cell
+    // reference, drop its neighbor arrays and keep the number for
+    // reuse.  Its old position in the order is simply left unused.
+    private void releaseIfUnlinked(int node) {
+        if(upCount[node] > 0 || downCount[node] > 0 || ref[node] == CellRef.NONE) {
+            return;
+        }
+        nodeOf.remove(ref[node], -1);
+        ref[node] = CellRef.NONE;
+        upLinks[node] = NO_LINKS;
+        upPos[node] = NO_LINKS;
+        downLinks[node] = NO_LINKS;
+        if(freeCount == freeNodes.length) {
+            freeNodes = Arrays.copyOf(freeNodes, Math.max(16, freeCount * 2));
+        }
+        freeNodes[freeCount++] = node;
+    }
+    
+    // Start a new search so that no node counts as visited
+    private int nextEpoch() {
+        epoch++;
+        if(epoch == 0) {
+            // wrapped around, clear stale marks
+            Arrays.fill(mark, 0);
+            epoch = 1;
+        }
+        return epoch;
+    }
+    
+    // Insert a single link making node upstream an upstream node of
+    // node id, and restore the topological order with the Pearce-Kelly
+    // online algorithm.  When the link already agrees with the order
+    // nothing else is done.  Otherwise only the nodes positioned
+    // between the two ends are searched: those reachable downstream
+    // from id and those reaching upstream are reassigned the same pool
+    // of positions so that the latter come first.  If the forward
+    // search reaches upstream the link closes a cycle and is not
+    // inserted; the cycle is returned as a path of cell IDs following
+    // upstream links from id back to id.  Return null when no cycle is
+    // created.
+    private List<String> insertLink(int upstream, int id) {
+        int lower = ord[id];
+        int upper = ord[upstream];
+        if(upstream == id) {
+            List<String> path = new ArrayList<>();
+            path.add(CellRef.toID(ref[id]));
+            path.add(CellRef.toID(ref[id]));
+            return path;
+        }
+        if(lower > upper) {
+            // already in order, no search necessary
+            link(upstream, id);
+            return null;
+        }
+        
+        // Forward search downstream from id restricted to nodes
+        // positioned before upstream.  parent remembers how each node
+        // was reached to report a cycle.
+        int forwardStamp = nextEpoch();
+        int[] forward = new int[16];
+        int forwardCount = 0;
+        int[] stack = new int[16];
+        int top = 0;
+        mark[id] = forwardStamp;
+        parent[id] = -1;
+        stack[top++] = id;
+        while(top > 0) {
+            int node = stack[--top];
+            if(forwardCount == forward.length) {
+                forward = Arrays.copyOf(forward, forwardCount * 2);
+            }
+            forward[forwardCount++] = node;
+            int[] links = downLinks[node];
+            for(int i = 0; i < downCount[node]; i++) {
+                int next = links[i];
+                if(next == upstream) {
+                    // id already reaches upstream, the link closes a cycle
+                    List<String> path = new ArrayList<>();
+                    path.add(CellRef.toID(ref[id]));
+                    path.add(CellRef.toID(ref[upstream]));
+                    for(int back = node; back >= 0; back = parent[back]) {
+                        path.add(CellRef.toID(ref[back]));
+                    }
+                    return path;
+                }
+                if(ord[next] < upper && mark[next] != forwardStamp) {
+                    mark[next] = forwardStamp;
+                    parent[next] = node;
+                    if(top == stack.length) {
+                        stack = Arrays.copyOf(stack, top * 2);
+                    }
+                    stack[top++] = next;
+                }
+            }
+        }
+        
+        // Backward search upstream from upstream restricted to nodes
+        // positioned after id.  The two regions cannot overlap as that
+        // would have been a cycle.
+        int backwardStamp = nextEpoch();
+        int[] backward = new int[16];
+        int backwardCount = 0;
+        mark[upstream] = backwardStamp;
+        stack[top++] = upstream;
+        while(top > 0) {
+            int node = stack[--top];
+            if(backwardCount == backward.length) {
+                backward = Arrays.copyOf(backward, backwardCount * 2);
+            }
+            backward[backwardCount++] = node;
+            int[] links = upLinks[node];
+            for(int i = 0; i < upCount[node]; i++) {
+                int next = links[i];
+                if(ord[next] > lower && mark[next] != backwardStamp) {
+                    mark[next] = backwardStamp;
+                    if(top == stack.length) {
+                        stack = Arrays.copyOf(stack, top * 2);
+                    }
+                    stack[top++] = next;
+                }
+            }
+        }
+        
+        // Reassign the pooled positions: everything reaching upstream
+        // goes before everything reachable from id, each group keeping
+        // its relative order.
+        sortByOrder(backward, backwardCount);
+        sortByOrder(forward, forwardCount);
+        int[] pool = new int[backwardCount + forwardCount];
+        for(int i = 0; i < backwardCount; i++) {
+            pool[i] = ord[backward[i]];
+        }
+        for(int i = 0; i < forwardCount; i++) {
+            pool[backwardCount + i] = ord[forward[i]];
+        }
+        Arrays.sort(pool);
+        for(int i = 0; i < backwardCount; i++) {
+            ord[backward[i]] = pool[i];
+        }
+        for(int i = 0; i < forwardCount; i++) {
+            ord[forward[i]] = pool[backwardCount + i];
+        }
+        link(upstream, id);
+        return null;
+    }
+    
+    // Sort the first count nodes of the array by topological position
+    private void sortByOrder(int[] nodes, int count) {
+        // pack position and node number in a long to sort primitives
+        long[] keyed = new long[count];
+        for(int i = 0; i < count; i++) {
+            keyed[i] = (long) ord[nodes[i]] << 32 | nodes[i];
+        }
+        Arrays.sort(keyed);
+        for(int i = 0; i < count; i++) {
+            nodes[i] = (int) keyed[i];
+        }
+    }
+    
+    // Record the link from node upstream to node id in both neighbor
+    // lists, growing them as needed.
+    private void link(int upstream, int id) {
+        if(downCount[upstream] == downLinks[upstream].length) {
+            downLinks[upstream] = Arrays.copyOf(downLinks[upstream], Math.max(4, downCount[upstream] * 2));
+        }
+        if(upCount[id] == upLinks[id].length) {
+            int capacity = Math.max(4, upCount[id] * 2);
+            upLinks[id] = Arrays.copyOf(upLinks[id], capacity);
+            upPos[id] = Arrays.copyOf(upPos[id], capacity);
+        }
+        upLinks[id][upCount[id]] = upstream;
+        upPos[id][upCount[id]] = downCount[upstream];
+        upCount[id]++;
+        downLinks[upstream][downCount[upstream]++] = id;
+    }
+    
+    // Take every upstream link of the node out of both neighbor lists.
+    // Each entry is removed from its downstream list by moving the last
+    // entry into its place; the moved node's upPos is corrected with a
+    // scan of its own upstream list, which is as long as its formula.
+    // Upstream nodes left without links are released; the node itself
+    // is kept, callers release it with releaseIfUnlinked() if wanted.
+    private void unlinkAll(int id) {
+        unlinkAll(id, true);
+    }
+    
+    // Take every upstream link of the node out of both neighbor lists,
+    // releasing upstream nodes left without links only if asked to.
+    private void unlinkAll(int id, boolean release) {
+        for(int i = 0; i < upCount[id]; i++) {
+            int upstream = upLinks[id][i];
+            int position = upPos[id][i];
+            int last = --downCount[upstream];
+            int moved = downLinks[upstream][last];
+            downLinks[upstream][position] = moved;
+            if(moved != id) {
+                int j = indexOf(upLinks[moved], upCount[moved], upstream);
+                upPos[moved][j] = position;
+            }
+            if(last == 0 && release) {
+                releaseIfUnlinked(upstream);
+            }
+        }
+        upCount[id] = 0;
+    }
+    
+    // Index of value among the first count entries of the array, or -1
+    private static int indexOf(int[] array, int count, int value) {
+        for(int i = 0; i < count; i++) {
+            if(array[i] == value) {
+                return i;
             }
-            
-            StringBuilder builder = new StringBuilder();
-            builder.append(path); // the path of the cycle
-            throw new CycleException(builder.toString());
         }
+        return -1;
     }
     
     // Determine if there is a cycle in the graph represented in the
     // links map.  List curPath is the current path through the graph,
     // the last element of which is the current location in the graph.
-    // This method should do a recursive depth-first traversal of the
-    // graph visiting each neighbor of the current element. Each
-    // neighbor should be checked to see if it equals the first element
-    // in curPath in which case there is a cycle.
+    // This method does a depth-first traversal of the graph with the
+    // usual three colors: nodes on curPath are on the stack (gray),
+    // nodes whose every path has already been explored are finished
+    // (black) and are never entered again, and all others are
+    // unvisited (white).  Reaching a node which is on the stack closes
+    // a cycle.
     //
     // This method should return true if a cycle is found and curPath
     // should be left to contain the cycle that is found.  Return false
     // if no cycles exist and leave the contents of curPath as they were
     // originally.
     //
-    // The method should be used during add(..) which will initialize
-    // curPath to the new node being added and use the upstream links as
-    // the links passed in.
+    // add(..) detects cycles while maintaining the topological order
+    // and no longer calls this method; it remains available to check an
+    // arbitrary links map, initializing curPath to the node to start from.
+    //
+    // TARGET RUNTIME COMPLEXITY: O(N + L)
+    //   N : number of nodes reachable from the end of curPath
+    //   L : number of links between those nodes
     public static boolean checkForCycles(Map<String, Set<String>> links, List<String> curPath) {
+        Set<String> onPath = new HashSet<>(curPath);
+        Set<String> finished = new HashSet<>();
+        return checkForCycles(links, curPath, onPath, finished);
+    }
+    
+    // Recursive helper for checkForCycles(links, curPath).  onPath holds
+    // the same nodes as curPath for constant time membership tests and
+    // finished collects the nodes from which no cycle can be reached.
+    private static boolean checkForCycles(Map<String, Set<String>> links, List<String> curPath,
+                                          Set<String> onPath, Set<String> finished) {
         // LASTNODE = get last element from PATH
         String lastNode = curPath.get(curPath.size() - 1);
         // NEIGHBORS = get set of neighbors associated with LASTNODE from LINKS
@@ -188,6 +987,7 @@ public class DAG{
         // if NEIGHBORS is empty or null then 
         // return false as this path has reached a dead end
         if(neighbors == null || neighbors.isEmpty()) {
+            finished.add(lastNode);
             return false;
         }
         // otherwise continue
@@ -195,16 +995,25 @@ public class DAG{
         // for every NID in NEIGHBORS
         while(iterator.hasNext()) {
             String NID = iterator.next();
+            // a finished neighbor was fully explored without finding a
+            // cycle, there is no need to explore it again
+            if(finished.contains(NID)) {
+                continue;
+            }
             // append NID to the end of PATH
             curPath.add(NID);
-            // if the first element in PATH equals NID then
+            // if NID is already on PATH then 
             // return true because PATH now contains a cycle
-            if(curPath.get(0).equals(NID)) {
+            if(onPath.contains(NID)) {
+                // drop any prefix of PATH which is not part of the cycle
+                int start = curPath.indexOf(NID);
+                curPath.subList(0, start).clear();
                 return true;
             }
             // otherwise continue
             // RESULT = checkForCycles(LINKS,PATH), recursively visit the neighbor
-            boolean result = checkForCycles(links, curPath); 
+            onPath.add(NID);
+            boolean result = checkForCycles(links, curPath, onPath, finished); 
             // if RESULT is true then
             // return true because PATH contains a cycle
             if(result) {
@@ -212,35 +1021,112 @@ public class DAG{
             }
             // otherwise continue
             // remove the last element from PATH which should be NID
+            onPath.remove(NID);
             curPath.remove(curPath.size() - 1);
         }
         // after exploring all NEIGHBORS, no cycles were found so return false
+        finished.add(lastNode);
         return false;
     }
     
+    // Write the DAG to the given output for a snapshot: every node with
+    // its CellRef and topological position followed by the upstream
+    // links of each node, so that readFrom() rebuilds it without any
+    // cycle checks or reordering.
+    //
+    // TARGET COMPLEXITY: O(V + E)
+    public void writeTo(DataOutput out) throws IOException {
+        // nodes are written densely numbered, skipping released ones
+        int[] index = new int[nodeCount];
+        int live = 0;
+        for(int node = 0; node < nodeCount; node++) {
+            if(ref[node] != CellRef.NONE) {
+                index[node] = live++;
+            }
+        }
+        out.writeInt(live);
+        out.writeInt(nextOrd);
+        for(int node = 0; node < nodeCount; node++) {
+            if(ref[node] != CellRef.NONE) {
+                CellRef.writeRef(out, ref[node]);
+                out.writeInt(ord[node]);
+            }
+        }
+        for(int node = 0; node < nodeCount; node++) {
+            if(ref[node] != CellRef.NONE) {
+                out.writeInt(upCount[node]);
+                for(int i = 0; i < upCount[node]; i++) {
+                    out.writeInt(index[upLinks[node][i]]);
+                }
+            }
+        }
+    }
+    
+    // Read a DAG written by writeTo().  The data is checked as it is
+    // read: CellRefs must be distinct, positions distinct and every
+    // link must run from an earlier to a later position, which also
+    // rules out cycles.  Otherwise an IOException is raised.
+    //
+    // TARGET COMPLEXITY: O(V log V + E)
+    public static DAG readFrom(DataInput in) throws IOException {
+        DAG dag = new DAG();
+        int live = in.readInt();
+        int endOrd = in.readInt();
+        if(live < 0) {
+            throw new IOException("Negative node count " + live + " in DAG");
+        }
+        for(int i = 0; i < live; i++) {
+            int id = CellRef.readRef(in);
+            if(id == CellRef.NONE || dag.nodeOf.get(id, -1) >= 0) {
+                throw new IOException("Bad or repeated cell reference " + id + " in DAG");
+            }
+            int node = dag.createNode(id);
+            dag.ord[node] = in.readInt();
+        }
+        int[] positions = Arrays.copyOf(dag.ord, live);
+        Arrays.sort(positions);
+        for(int i = 0; i < live; i++) {
+            if(positions[i] < 0 || positions[i] >= endOrd || (i > 0 && positions[i] == positions[i - 1])) {
+                throw new IOException("Bad topological position in DAG");
+            }
+        }
+        dag.nextOrd = endOrd;
+        for(int node = 0; node < live; node++) {
+            int count = in.readInt();
+            for(int i = 0; i < count; i++) {
+                int upstream = in.readInt();
+                if(upstream < 0 || upstream >= live
+                   || dag.ord[upstream] >= dag.ord[node]
+                   || indexOf(dag.upLinks[node], dag.upCount[node], upstream) >= 0) {
+                    throw new IOException("Bad link in DAG");
+                }
+                dag.link(upstream, node);
+            }
+        }
+        return dag;
+    }
+    
     // Remove the given id by eliminating it from the downstream links
     // of other ids and eliminating its upstream links.  If the ID has
-    // no upstream dependencies, do nothing.
+    // no upstream dependencies, do nothing.  Nodes left without any
+    // links, id included, are compacted away.
     //
     // TARGET COMPLEXITY: O(L_i)
     //   L_i : number of upstream links node id has
     public void remove(String id) {
-        Set<String> upstreamLinks = getUpstreamLinks(id);
-        if(upstreamLinks.isEmpty()) {
+        remove(CellRef.lookup(id));
+    }
+    
+    // Remove the given cell reference from the DAG, as remove(String).
+    public void remove(int id) {
+        int node = nodeOf.get(id, -1);
+        if(node < 0) {
             // If the ID has
             // no upstream dependencies, do nothing.
             return;
         }
-        Iterator<String> iterator = upstreamLinks.iterator();
-        while(iterator.hasNext()) {
-            // eliminating the given id from the downstream links
-            // of other ids
-            String oneUpstreamID = iterator.next();
-            Set<String> downstreamLinks = getDownstreamLinks(oneUpstreamID);
-            downstreamLinks.remove(id);
-        }
-        // eliminating the given id's upstream links
-        upstreamLinksMap.remove(id);
+        unlinkAll(node);
+        releaseIfUnlinked(node);
     }
     
-}
\ No newline at end of file
+}
@@ -5,7 +5,10 @@ import java.util.HashMap;
 // Represent elements of a binary abstract syntax tree for basic
 // spreadsheet formulas like '=A1 + -5.23 *(2+3+A4) / ZD11'.
 //
-// This class does not require modification.
+// Trees are built by FormulaDescentParser or, when selected, by the
+// ANTLR lexer and parser which the Gradle build generates from
+// Formula.g4; "gradle parserParity" checks that both build the same
+// trees.
 public class FNode {
   // Type of token at this node. May be one of the following values:
   //   TokenType.Plus
@@ -21,6 +24,16 @@ public class FNode {
   // another cell.
   public String data;
 
+  // Numeric value of a TokenType.Number node, parsed once from data
+  // when the node is constructed so that evaluation never has to parse
+  // strings. Zero for all other node types.
+  public double number;
+
+  // Packed CellRef of a TokenType.CellID node, parsed once from data
+  // when the node is constructed. CellRef.NONE for all other node
+  // types and for IDs which can never name a cell.
+  public int ref;
+
   // Left and right branch of the tree. One or the other may be null
   // if syntax dictates a null child. Notably, for unary negation the
   // left child is the subtree that is negated and the right tree is
@@ -34,6 +47,14 @@ public class FNode {
     this.data=data;
     this.left=left;
     this.right=right;
+    if(type == TokenType.Number){
+      this.number=Double.parseDouble(data);
+    }
+    else if(type == TokenType.CellID){
+      // a formula may refer to a cell before it exists, so IDs out of
+      // the packed range are registered here rather than looked up
+      this.ref=CellRef.isWellFormed(data) ? CellRef.parse(data) : CellRef.NONE;
+    }
   }
 
   // Constructor a node with the given data
@@ -92,7 +113,9 @@ public class FNode {
         errmsg = stack.toString();
       }
       else if(recognizer instanceof Lexer){
-        errmsg = ((Lexer)recognizer).getAllTokens().toString();
+        // the offending character is not consumed yet, so lexing the
+        // rest of the input here would report it again without end
+        errmsg = msg;
       }
       else{
         throw new RuntimeException("WTF^M?");
@@ -104,10 +127,33 @@ public class FNode {
 
   }
 
+  // Whether parseFormulaString() runs the ANTLR pipeline rather than
+  // the hand-written FormulaDescentParser. Both produce the same trees;
+  // the hand-written parser is the default as it avoids the token
+  // stream, the parse tree and loading the ANTLR runtime. Start the
+  // JVM with -Dackcell.parser=antlr to select ANTLR.
+  private static volatile boolean useAntlr =
+    "antlr".equals(System.getProperty("ackcell.parser"));
+
+  // Select the ANTLR parser (true) or the hand-written parser (false)
+  // for later calls to parseFormulaString().
+  public static void useAntlrParser(boolean antlr){
+    useAntlr=antlr;
+  }
+
   // Construct a tree based on the provided formula string. Primary
   // means to construct trees.
   public static FNode parseFormulaString(String formulaStr){
-    ANTLRInputStream input = new ANTLRInputStream(formulaStr);
+    if(!useAntlr){
+      return FormulaDescentParser.parse(formulaStr);
+    }
+    return parseWithAntlr(formulaStr);
+  }
+
+  // Construct a tree from the formula string with the ANTLR generated
+  // lexer and parser and FormulaVisitorImpl.
+  public static FNode parseWithAntlr(String formulaStr){
+    CharStream input = CharStreams.fromString(formulaStr);
     FormulaLexer lexer = new FormulaLexer(input);
     CommonTokenStream tokens = new CommonTokenStream(lexer);
     FormulaParser parser = new FormulaParser(tokens);
@@ -144,7 +190,7 @@ public class FNode {
   // builds a tree of FNodes.  Basic usage is as follows such as in a
   // main() method:
   //
-  // ANTLRInputStream input = new ANTLRInputStream(formulaStr);
+  // CharStream input = CharStreams.fromString(formulaStr);
   // FormulaLexer lexer = new FormulaLexer(input);
   // CommonTokenStream tokens = new CommonTokenStream(lexer);
   // FormulaParser parser = new FormulaParser(tokens);
@@ -0,0 +1,36 @@
+// ANTLR 4 grammar of spreadsheet formulas.  FNode.parseWithAntlr()
+// uses the FormulaLexer and FormulaParser generated from it, and
+// FNode.FormulaVisitorImpl extends the generated FormulaBaseVisitor, so
+// generate them with the visitor enabled into the default package:
+//
+//   java -jar antlr-4-complete.jar -visitor -no-listener Formula.g4
+//
+// FormulaDescentParser accepts the same language without ANTLR; keep
+// the two in step when either changes.
+grammar Formula;
+
+input       : '=' plusOrMinus EOF              # All
+            ;
+
+plusOrMinus : plusOrMinus '+' multOrDiv        # Plus
+            | plusOrMinus '-' multOrDiv        # Minus
+            | multOrDiv                        # ToMultOrDiv
+            ;
+
+multOrDiv   : multOrDiv '*' negate             # Multiply
+            | multOrDiv '/' negate             # Divide
+            | negate                           # ToNegate
+            ;
+
+negate      : '-' negate                       # Negation
+            | atom                             # ToAtom
+            ;
+
+atom        : CELLID                           # CellID
+            | NUMBER                           # Number
+            | '(' plusOrMinus ')'              # Braces
+            ;
+
+CELLID      : [A-Z]+ [0-9]+ ;
+NUMBER      : [0-9]+ ('.' [0-9]+)? ;
+WS          : [ \t\r\n]+ -> skip ;
@@ -0,0 +1,214 @@
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Bounded cache of parsed formulas keyed by their trimmed text.  Real
+// sheets repeat the same formula text many times, most of all when
+// rows are pasted or loaded, and parsing is by far the most expensive
+// part of Cell.make().  Every formula cell with the same text shares
+// one Parsed entry: its formula tree, its compiled program and the
+// cell references it depends on.  Entries are never modified once
+// built, apart from a tree parsed on demand, so sharing them between
+// cells, spreadsheets and threads is safe as long as callers do not
+// modify the shared tree either.
+//
+// The cache may be used from several threads at once.  Eviction is a
+// second chance (clock) approximation of least recently used: a hit
+// sets a flag on the entry, and when the cache holds capacity entries
+// the next insertion sweeps it once, dropping the entries not hit
+// since the previous sweep and clearing the flag of the others.  If
+// that frees less than a quarter of the cache, arbitrary entries go
+// too until three quarters are left, so a sweep is paid for by at
+// least capacity / 4 insertions.  The flag is set without
+// synchronization, which at worst costs an entry its second chance.
+// Entries dropped from the cache stay alive through the cells holding
+// them.  Text which fails to parse is never cached and raises its
+// exception on every lookup, and neither are programs restored from
+// outside, see restore().
+public class FormulaCache {
+
+    // Capacity of the cache shared by Cell.make()
+    public static final int DEFAULT_CAPACITY = 1 << 16;
+
+    private static final FormulaCache SHARED = new FormulaCache(DEFAULT_CAPACITY);
+
+    private final ConcurrentHashMap<String, Parsed> entries;
+    private final int capacity;
+
+    // Construct an empty cache holding at most capacity formulas
+    public FormulaCache(int capacity) {
+        if(capacity < 1) {
+            throw new IllegalArgumentException("Cache capacity must be positive: " + capacity);
+        }
+        this.entries = new ConcurrentHashMap<>();
+        this.capacity = capacity;
+    }
+
+    // Return the cache shared by every cell made with Cell.make()
+    public static FormulaCache shared() {
+        return SHARED;
+    }
+
+    // Return the parsed form of the given trimmed formula text, which
+    // starts with '='.  The text is parsed and compiled only if it is
+    // not cached yet.  If the text is not a valid formula a
+    // RuntimeException is raised.
+    //
+    // Target Complexity: O(1) expected when cached, otherwise O(length
+    // of formula)
+    public Parsed get(String formula) {
+        Parsed entry = entries.get(formula);
+        if(entry != null) {
+            if(!entry.hit) {
+                // write only once per sweep to keep the entry's cache
+                // line shared between threads
+                entry.hit = true;
+            }
+            return entry;
+        }
+        // parse outside of the map so a slow parse does not block other
+        // threads; two threads racing on the same text keep the first
+        return insert(formula, new Parsed(formula, FNode.parseFormulaString(formula)));
+    }
+
+    // Return the cached entry for the given formula text or, if there
+    // is none, an entry made from an already compiled program, as read
+    // back from a snapshot.  Such an entry parses its tree only if
+    // tree() is ever called.  Nothing checks that the program is the
+    // one its text compiles to, so the entry is not cached: it stays
+    // with the cells of the caller and never reaches cells made from
+    // the same text elsewhere.
+    //
+    // Target Complexity: O(1) expected
+    public Parsed restore(String formula, CompiledFormula program) {
+        Parsed entry = entries.get(formula);
+        if(entry != null) {
+            return entry;
+        }
+        return new Parsed(formula, program);
+    }
+
+    // Cache the entry unless another thread got there first and return
+    // the entry which is cached, sweeping a full cache first
+    private Parsed insert(String formula, Parsed entry) {
+        if(entries.size() >= capacity) {
+            evict();
+        }
+        Parsed raced = entries.putIfAbsent(formula, entry);
+        return raced == null ? entry : raced;
+    }
+    
+    // Sweep the cache as described above.  One thread sweeps at a time;
+    // the others keep inserting meanwhile, which may take the cache a
+    // little over capacity until the sweep is done.
+    //
+    // Target Complexity: O(capacity)
+    private synchronized void evict() {
+        if(entries.size() < capacity) {
+            // another thread swept while this one waited
+            return;
+        }
+        Iterator<Parsed> iterator = entries.values().iterator();
+        while(iterator.hasNext()) {
+            Parsed entry = iterator.next();
+            if(entry.hit) {
+                entry.hit = false;
+            } else {
+                iterator.remove();
+            }
+        }
+        int keep = capacity - Math.max(1, capacity / 4);
+        iterator = entries.values().iterator();
+        while(entries.size() > keep && iterator.hasNext()) {
+            iterator.next();
+            iterator.remove();
+        }
+    }
+
+    // Return the number of formulas cached
+    public int size() {
+        return entries.size();
+    }
+
+    // Remove every formula from the cache
+    public void clear() {
+        entries.clear();
+    }
+
+    // A formula parsed once and shared by every cell with its text
+    public static final class Parsed {
+
+        private final String text;               // the formula text
+        // Root of the formula tree, null until first asked for when the
+        // entry was restored from a compiled program
+        private volatile FNode tree;
+        private final CompiledFormula program;   // tree compiled for evaluation
+        private final int[] upstreamRefs;        // CellRefs which can name a cell
+        private boolean hit;                     // looked up since the last sweep
+
+        private Parsed(String text, FNode tree) {
+            this.text = text;
+            this.tree = tree;
+            this.program = CompiledFormula.compile(tree);
+            this.upstreamRefs = linkableRefs(program.slots());
+        }
+
+        private Parsed(String text, CompiledFormula program) {
+            this.text = text;
+            this.tree = null;
+            this.program = program;
+            this.upstreamRefs = linkableRefs(program.slots());
+        }
+
+        // Return the formula text the entry was made from
+        public String text() {
+            return text;
+        }
+
+        // Return the root of the formula tree, shared and not to be
+        // modified.  An entry restored from a compiled program parses
+        // its text on the first call; racing threads may both parse
+        // but get equal trees.
+        public FNode tree() {
+            FNode root = tree;
+            if(root == null) {
+                root = FNode.parseFormulaString(text);
+                tree = root;
+            }
+            return root;
+        }
+
+        // Return the compiled program of the formula
+        public CompiledFormula program() {
+            return program;
+        }
+
+        // Return the distinct cell references of the formula which can
+        // name a cell, shared and not to be modified
+        public int[] upstreamRefs() {
+            return upstreamRefs;
+        }
+
+        // The slots of the compiled formula hold each distinct cell
+        // reference of the tree once.  IDs which can never name a cell
+        // (CellRef.NONE) always evaluate to ERROR and are not linked.
+        private static int[] linkableRefs(int[] slots) {
+            int count = 0;
+            for(int i = 0; i < slots.length; i++) {
+                if(slots[i] != CellRef.NONE) {
+                    count++;
+                }
+            }
+            if(count == slots.length) {
+                return slots;
+            }
+            int[] refs = new int[count];
+            count = 0;
+            for(int i = 0; i < slots.length; i++) {
+                if(slots[i] != CellRef.NONE) {
+                    refs[count++] = slots[i];
+                }
+            }
+            return refs;
+        }
+    }
+}
@@ -0,0 +1,174 @@
+// Hand-written recursive descent parser for spreadsheet formulas which
+// builds a tree of FNodes directly from the formula text.  It accepts
+// the same grammar as the ANTLR Formula grammar and produces the same
+// trees as FormulaVisitorImpl, without building a token stream or a
+// parse tree first and without loading the ANTLR runtime:
+//
+//   input       : '=' plusOrMinus EOF
+//   plusOrMinus : plusOrMinus '+' multOrDiv | plusOrMinus '-' multOrDiv
+//               | multOrDiv
+//   multOrDiv   : multOrDiv '*' negate | multOrDiv '/' negate | negate
+//   negate      : '-' negate | atom
+//   atom        : CELLID | NUMBER | '(' plusOrMinus ')'
+//   CELLID      : [A-Z]+ [0-9]+
+//   NUMBER      : [0-9]+ ('.' [0-9]+)?
+//
+// Whitespace between tokens is skipped.  The left recursive rules are
+// parsed as loops so that +, -, * and / associate to the left.  Invalid
+// input raises a RuntimeException whose message starts with
+// "Parse Error:" like the ANTLR error listener and gives the position
+// of the offending character.
+//
+// FNode.parseFormulaString() uses this parser unless the ANTLR parser
+// is selected, see FNode.useAntlrParser().
+public class FormulaDescentParser {
+
+    private final String text; // the formula being parsed
+    private int pos;           // index of the next character to read
+
+    // private constructor, use parse(text) to parse formulas
+    private FormulaDescentParser(String text) {
+        this.text = text;
+        this.pos = 0;
+    }
+
+    // Parse the given formula text, which must start with '=', into a
+    // tree of FNodes.  Raise a RuntimeException if the text is not a
+    // valid formula.
+    //
+    // Target Complexity: O(length of text)
+    public static FNode parse(String text) {
+        FormulaDescentParser parser = new FormulaDescentParser(text);
+        parser.expect('=', "input");
+        FNode root = parser.plusOrMinus();
+        parser.skipWhitespace();
+        if(parser.pos < text.length()) {
+            throw parser.error("input", "extraneous input, expecting end of formula");
+        }
+        return root;
+    }
+
+    // plusOrMinus : multOrDiv (('+' | '-') multOrDiv)*
+    private FNode plusOrMinus() {
+        FNode left = multOrDiv();
+        while(true) {
+            int c = peek();
+            if(c == '+') {
+                pos++;
+                left = new FNode(TokenType.Plus, left, multOrDiv());
+            } else if(c == '-') {
+                pos++;
+                left = new FNode(TokenType.Minus, left, multOrDiv());
+            } else {
+                return left;
+            }
+        }
+    }
+
+    // multOrDiv : negate (('*' | '/') negate)*
+    private FNode multOrDiv() {
+        FNode left = negate();
+        while(true) {
+            int c = peek();
+            if(c == '*') {
+                pos++;
+                left = new FNode(TokenType.Multiply, left, negate());
+            } else if(c == '/') {
+                pos++;
+                left = new FNode(TokenType.Divide, left, negate());
+            } else {
+                return left;
+            }
+        }
+    }
+
+    // negate : '-' negate | atom
+    private FNode negate() {
+        if(peek() == '-') {
+            pos++;
+            return new FNode(TokenType.Negate, negate(), null);
+        }
+        return atom();
+    }
+
+    // atom : CELLID | NUMBER | '(' plusOrMinus ')'
+    private FNode atom() {
+        int c = peek();
+        int start = pos;
+        if(c >= 'A' && c <= 'Z') {
+            while(pos < text.length() && isLetter(text.charAt(pos))) {
+                pos++;
+            }
+            if(!skipDigits()) {
+                throw error("atom", "token recognition error, cell id without row");
+            }
+            return new FNode(TokenType.CellID, text.substring(start, pos), null, null);
+        }
+        if(c >= '0' && c <= '9') {
+            skipDigits();
+            if(pos < text.length() && text.charAt(pos) == '.') {
+                pos++;
+                if(!skipDigits()) {
+                    throw error("atom", "token recognition error, number without decimals");
+                }
+            }
+            return new FNode(TokenType.Number, text.substring(start, pos), null, null);
+        }
+        if(c == '(') {
+            pos++;
+            FNode inner = plusOrMinus();
+            expect(')', "atom");
+            return inner;
+        }
+        throw error("atom", c < 0 ? "missing operand at end of formula" : "unexpected input");
+    }
+
+    // Skip whitespace and return the next character without consuming
+    // it, or -1 at the end of the text
+    private int peek() {
+        skipWhitespace();
+        return pos < text.length() ? text.charAt(pos) : -1;
+    }
+
+    // Consume the given character after any whitespace or raise a parse
+    // error naming the rule being parsed
+    private void expect(char c, String rule) {
+        if(peek() != c) {
+            throw error(rule, "expecting '" + c + "'");
+        }
+        pos++;
+    }
+
+    // Skip whitespace, which separates tokens and is otherwise ignored
+    private void skipWhitespace() {
+        while(pos < text.length()) {
+            char c = text.charAt(pos);
+            if(c != ' ' && c != '\t' && c != '\r' && c != '\n') {
+                return;
+            }
+            pos++;
+        }
+    }
+
+    // Skip a run of digits and return whether there was at least one
+    private boolean skipDigits() {
+        int start = pos;
+        while(pos < text.length() && text.charAt(pos) >= '0' && text.charAt(pos) <= '9') {
+            pos++;
+        }
+        return pos > start;
+    }
+
+    private static boolean isLetter(char c) {
+        return c >= 'A' && c <= 'Z';
+    }
+
+    // Build the exception for a syntax error at the current position in
+    // the same shape as FNode.FailOnErrorListener messages
+    private RuntimeException error(String rule, String msg) {
+        String at = pos < text.length() ? "'" + text.charAt(pos) + "'" : "<EOF>";
+        return new RuntimeException
+            (String.format("Parse Error:\nRule Stack: [%s]\nLine %d:%d at %s: %s",
+                           rule, 1, pos, at, msg));
+    }
+}
@@ -0,0 +1,67 @@
+import java.util.*;
+import java.io.*;
+
+
+// Checks that FormulaDescentParser accepts the same formulas as the
+// ANTLR parser generated from Formula.g4 and builds the same trees.
+// Hand-picked formulas, valid and not, are followed by random ones
+// built from a small alphabet of formula characters.  Both parsers
+// must reject a formula or both must give trees with the same
+// toString(); the error messages are allowed to differ.
+public class FormulaParserParity{
+
+  static final String[] FORMULAS = {
+    "=1", "=A1", "=-1", "=--1", "=1-2-3", "=8/4/2", "=1+2*3", "=(1+2)*3",
+    "=A1 + -5.23 *(2+3+A4) / ZD11", "=  A1\t*\n2  ", "=1.5", "=0.25",
+    "=A01", "=A0", "=XFD1048577", "=((((A1))))", "=-(A1-B2)",
+    "", "=", "1+2", "=1+", "=(1", "=1)", "=1.", "=.5", "=a1", "=A",
+    "=1 2", "=A1 B1", "=1++2", "=*1", "=A 1", "=1e5", "= ", "=1..2",
+  };
+
+  static final String ALPHABET = "AB019.+-*/() =";
+
+  public static void main(String args[]){
+    PrintStream o = System.out;
+
+    int checked = 0;
+    for(String formula : FORMULAS){
+      compare(formula);
+      checked++;
+    }
+    // fixed seed so every run checks the same formulas
+    Random random = new Random(7);
+    for(int i = 0; i < 20000; i++){
+      StringBuilder formula = new StringBuilder("=");
+      int length = 1 + random.nextInt(12);
+      for(int j = 0; j < length; j++){
+        formula.append(ALPHABET.charAt(random.nextInt(ALPHABET.length())));
+      }
+      compare(formula.toString());
+      checked++;
+    }
+    o.println(checked+" formulas parsed alike");
+    o.println("OK");
+  }
+
+  // Parse the formula with both parsers and throw if they disagree
+  static void compare(String formula){
+    String descent = parse(formula, false);
+    String antlr = parse(formula, true);
+    if(!descent.equals(antlr)){
+      throw new RuntimeException("Parsers disagree on '"+formula+"'\n"+
+                                 "descent:\n"+descent+"\nantlr:\n"+antlr);
+    }
+  }
+
+  // The tree of the formula as a string, or "rejected"
+  static String parse(String formula, boolean antlr){
+    try{
+      FNode root = antlr ? FNode.parseWithAntlr(formula)
+                         : FormulaDescentParser.parse(formula);
+      return root.toString();
+    }
+    catch(RuntimeException e){
+      return "rejected";
+    }
+  }
+}
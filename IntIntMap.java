@@ -0,0 +1,146 @@
+// Open-addressing hash map from int keys to int values which stores
+// both in flat primitive arrays, so a mapping costs two array slots
+// rather than a boxed entry object.  Collisions are resolved by linear
+// probing in a power of two sized table kept at most half full.
+//
+// The key 0 marks an empty slot and cannot be stored; cell references
+// never use it (see CellRef.NONE).
+public class IntIntMap {
+
+    private int[] keys;   // 0 for an empty slot
+    private int[] values; // value of the key in the same slot
+    private int size;     // number of keys stored
+    private int mask;     // table length - 1
+    private int shift;    // 32 - log2(table length)
+
+    // Construct an empty map
+    public IntIntMap() {
+        keys = new int[16];
+        values = new int[16];
+        mask = keys.length - 1;
+        shift = 32 - 4;
+        size = 0;
+    }
+
+    // Return the number of keys in the map
+    public int size() {
+        return size;
+    }
+
+    // Return the value associated with the given key, or missing if
+    // the key is not in the map.
+    //
+    // TARGET COMPLEXITY: O(1) expected
+    public int get(int key, int missing) {
+        if(key == 0) {
+            // never stored, and would match an empty slot
+            return missing;
+        }
+        for(int slot = slotOf(key); ; slot = (slot + 1) & mask) {
+            int found = keys[slot];
+            if(found == key) {
+                return values[slot];
+            }
+            if(found == 0) {
+                return missing;
+            }
+        }
+    }
+
+    // Associate the given value with the given non-zero key, replacing
+    // any previous value.
+    //
+    // TARGET COMPLEXITY: O(1) amortized
+    public void put(int key, int value) {
+        if(key == 0) {
+            throw new IllegalArgumentException("IntIntMap cannot store the key 0");
+        }
+        int slot = slotOf(key);
+        while(keys[slot] != 0 && keys[slot] != key) {
+            slot = (slot + 1) & mask;
+        }
+        if(keys[slot] == 0) {
+            keys[slot] = key;
+            size++;
+        }
+        values[slot] = value;
+        if(size * 2 > keys.length) {
+            grow();
+        }
+    }
+
+    // Remove the given key from the map and return the value it was
+    // associated with, or missing if the key was not in the map.  The
+    // keys probed past the freed slot are shifted back into it so that
+    // lookups never need tombstones.
+    //
+    // TARGET COMPLEXITY: O(1) expected
+    public int remove(int key, int missing) {
+        if(key == 0) {
+            return missing;
+        }
+        int slot = slotOf(key);
+        while(keys[slot] != key) {
+            if(keys[slot] == 0) {
+                return missing;
+            }
+            slot = (slot + 1) & mask;
+        }
+        int value = values[slot];
+        size--;
+        int gap = slot;
+        for(int next = (gap + 1) & mask; keys[next] != 0; next = (next + 1) & mask) {
+            // a key may fill the gap when the gap lies on its probe
+            // sequence, that is between its home slot and its slot
+            int home = slotOf(keys[next]);
+            if(((next - home) & mask) >= ((next - gap) & mask)) {
+                keys[gap] = keys[next];
+                values[gap] = values[next];
+                gap = next;
+            }
+        }
+        keys[gap] = 0;
+        return value;
+    }
+
+    // Home slot of a key.  Cell references differ mostly in their low
+    // row bits and high column bits, so the key is mixed with the
+    // golden ratio multiplier before taking the top bits.
+    private int slotOf(int key) {
+        return (key * 0x9E3779B9) >>> shift;
+    }
+
+    // Double the table and reinsert every key
+    private void grow() {
+        int[] oldKeys = keys;
+        int[] oldValues = values;
+        keys = new int[oldKeys.length * 2];
+        values = new int[oldValues.length * 2];
+        mask = keys.length - 1;
+        shift--;
+        for(int i = 0; i < oldKeys.length; i++) {
+            if(oldKeys[i] != 0) {
+                int slot = slotOf(oldKeys[i]);
+                while(keys[slot] != 0) {
+                    slot = (slot + 1) & mask;
+                }
+                keys[slot] = oldKeys[i];
+                values[slot] = oldValues[i];
+            }
+        }
+    }
+
+    // Produce a string of the mappings for debugging
+    public String toString() {
+        StringBuilder builder = new StringBuilder("{");
+        for(int i = 0; i < keys.length; i++) {
+            if(keys[i] != 0) {
+                if(builder.length() > 1) {
+                    builder.append(", ");
+                }
+                builder.append(keys[i]).append('=').append(values[i]);
+            }
+        }
+        return builder.append('}').toString();
+    }
+}
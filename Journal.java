@@ -0,0 +1,561 @@
+import java.util.Map;
+import java.util.LinkedHashMap;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+// Write-ahead journal keeping a spreadsheet on disk without rewriting
+// the whole sheet on every save.  Each setCell() and deleteCell() made
+// through the journal is applied to its spreadsheet and then appended
+// to the journal as a small binary record:
+//
+//   int length, int CRC32 of the payload, payload
+//   payload : byte SET, CellRef, int n, n bytes of UTF-8 contents
+//           | byte DELETE, CellRef
+//
+// with the CellRef as written by CellRef.writeRef().
+//
+// Records are appended to a buffer in memory and a background writer
+// thread writes them to the current segment file and forces them to
+// disk.  Records appended while a force is under way are written by the
+// next one, so under load one fsync covers many edits (group commit).
+// sync() waits until everything appended so far is on disk.
+//
+// Once checkpointBytes of records are logged a checkpoint is taken: a
+// binary snapshot of the sheet (Spreadsheet.writeSnapshot) is streamed
+// to a temporary file on the editing thread, which pauses edits for one
+// pass over the sheet but holds no copy of it in memory.  Later records
+// go to a new segment, and a second background thread forces the
+// snapshot to disk, renames it into place and then deletes the segments
+// and the checkpoint it replaces.  A directory therefore holds
+//
+//   checkpoint-N.snap   the sheet as it was when segment N was started
+//   journal-N.log ...   segment N and every later segment
+//
+// open() recovers a sheet by loading the newest checkpoint and replaying
+// the segments after it.  A record torn by a crash at the end of the
+// last segment is cut off; damage anywhere else raises an IOException.
+//
+// The spreadsheet must only be edited through the journal, by one
+// thread at a time, and without batches.
+public class Journal implements Closeable {
+
+    // Bytes of records logged before a checkpoint is taken by default
+    public static final long DEFAULT_CHECKPOINT_BYTES = 64L << 20;
+
+    private static final byte SET = 1;
+    private static final byte DELETE = 2;
+    private static final int HEADER_BYTES = 8;    // length and CRC32
+    private static final int MIN_PAYLOAD = 5;     // op and CellRef
+
+    private final Path dir;
+    private final Spreadsheet sheet;
+    private final long checkpointBytes;
+    private final ExecutorService writer;    // writes and forces records
+    private final ExecutorService compactor; // writes checkpoints
+    private final CRC32 crc = new CRC32();   // for records being appended
+    // record being appended, header included
+    private final ByteArrayOutputStream record = new ByteArrayOutputStream();
+    private final DataOutputStream recordOut = new DataOutputStream(record);
+
+    // Held while the segment file is written or switched, always taken
+    // before the lock on this
+    private final Object fileLock = new Object();
+    private FileChannel channel; // current segment
+    private long segment;        // number of the current segment
+
+    // Guarded by this
+    private final ByteArrayOutputStream pending = new ByteArrayOutputStream();
+    private boolean flushQueued; // a flush is waiting on the writer
+    private long appended;       // records appended since open()
+    private long durable;        // records known to be on disk
+    private long logged;         // bytes appended since the last checkpoint
+    private IOException failure; // first failure writing records
+    private IOException compactionFailure;
+    private boolean closed;
+
+    private Journal(Path dir, Spreadsheet sheet, long checkpointBytes,
+                    FileChannel channel, long segment) {
+        this.dir = dir;
+        this.sheet = sheet;
+        this.checkpointBytes = checkpointBytes;
+        this.channel = channel;
+        this.segment = segment;
+        this.writer = Executors.newSingleThreadExecutor(r -> daemon(r, "journal-writer"));
+        this.compactor = Executors.newSingleThreadExecutor(r -> daemon(r, "journal-compactor"));
+    }
+
+    // Open the journal in the given directory, creating the directory if
+    // needed, and recover the sheet it holds, as open(dir, checkpoint
+    // bytes) with DEFAULT_CHECKPOINT_BYTES.
+    public static Journal open(Path dir) throws IOException {
+        return open(dir, DEFAULT_CHECKPOINT_BYTES);
+    }
+
+    // Open the journal in the given directory and recover its sheet: the
+    // newest checkpoint is loaded and every later segment replayed, each
+    // as one batch with Spreadsheet.setCells().  Later changes are
+    // appended to the last segment and a checkpoint is taken after
+    // every checkpointBytes of records.
+    //
+    // TARGET COMPLEXITY: O(S + J)
+    //   S : size of the newest checkpoint
+    //   J : size of the segments after it
+    public static Journal open(Path dir, long checkpointBytes) throws IOException {
+        if(checkpointBytes < 1) {
+            throw new IllegalArgumentException("Checkpoint size must be positive: " + checkpointBytes);
+        }
+        Files.createDirectories(dir);
+        TreeSet<Long> segments = new TreeSet<>();
+        TreeSet<Long> checkpoints = new TreeSet<>();
+        try(DirectoryStream<Path> files = Files.newDirectoryStream(dir)) {
+            for(Path file : files) {
+                String name = file.getFileName().toString();
+                long number;
+                if((number = fileNumber(name, "journal-", ".log")) > 0) {
+                    segments.add(number);
+                } else if((number = fileNumber(name, "checkpoint-", ".snap")) > 0) {
+                    checkpoints.add(number);
+                } else if(name.startsWith("checkpoint-") && name.endsWith(".tmp")) {
+                    // a checkpoint which was never finished
+                    Files.delete(file);
+                }
+            }
+        }
+
+        long base = checkpoints.isEmpty() ? 1 : checkpoints.last();
+        Spreadsheet sheet = checkpoints.isEmpty()
+            ? new Spreadsheet()
+            : Spreadsheet.loadSnapshot(checkpointFile(dir, base));
+        // files replaced by the checkpoint but not yet deleted when the
+        // journal last stopped
+        removeBefore(dir, base);
+
+        long number = base;
+        long length = 0;
+        for(long found : segments.tailSet(base)) {
+            if(found != number) {
+                throw new IOException("Journal segment " + segmentFile(dir, number) + " is missing");
+            }
+            length = replay(sheet, segmentFile(dir, found), found == segments.last());
+            number++;
+        }
+        long last = Math.max(base, number - 1);
+        FileChannel channel = openSegment(dir, last, length);
+        return new Journal(dir, sheet, checkpointBytes, channel, last);
+    }
+
+    // Return the spreadsheet kept by the journal.  Edit it only through
+    // setCell() and deleteCell() of the journal.
+    public Spreadsheet sheet() {
+        return sheet;
+    }
+
+    // Set the cell as Spreadsheet.setCell() does and log the change.
+    // If the change fails nothing is logged.  The change is on disk
+    // once sync() returns.
+    public void setCell(String id, String contents) {
+        checkOpen();
+        sheet.setCell(id, contents);
+        if(contents != null && contents.length() > 0) {
+            append(SET, CellRef.parse(id), contents);
+        } else if(CellRef.lookup(id) != CellRef.NONE) {
+            append(DELETE, CellRef.lookup(id), null);
+        }
+        checkpointIfDue();
+    }
+
+    // Delete the cell as Spreadsheet.deleteCell() does and log the
+    // change.  IDs which cannot name a cell are not logged.
+    public void deleteCell(String id) {
+        checkOpen();
+        sheet.deleteCell(id);
+        int ref = CellRef.lookup(id);
+        if(ref != CellRef.NONE) {
+            append(DELETE, ref, null);
+        }
+        checkpointIfDue();
+    }
+
+    // Wait until every change logged so far is on disk.  Raise an
+    // IOException if the journal could not write it.
+    public void sync() throws IOException {
+        synchronized(this) {
+            long target = appended;
+            while(durable < target && failure == null) {
+                try {
+                    wait();
+                } catch(InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted waiting for the journal");
+                }
+            }
+            if(failure != null) {
+                throw new IOException("Journal could not be written", failure);
+            }
+        }
+    }
+
+    // Take a checkpoint now.  The snapshot of the sheet is written to a
+    // temporary file on the calling thread, so no edit can be made until
+    // it is done, and later changes go to a new segment.  Forcing the
+    // snapshot to disk and replacing the older files happens in the
+    // background.  If the snapshot cannot be written an IOException is
+    // raised and the journal carries on in the current segment.
+    //
+    // TARGET COMPLEXITY: O(size of sheet)
+    public void checkpoint() throws IOException {
+        checkOpen();
+        synchronized(this) {
+            if(compactionFailure != null) {
+                IOException e = compactionFailure;
+                compactionFailure = null;
+                throw new IOException("Earlier checkpoint could not be written", e);
+            }
+        }
+        long next;
+        synchronized(fileLock) {
+            next = segment + 1;
+        }
+        // only the editing thread changes the sheet, so it holds exactly
+        // the records appended so far while it is written out
+        Path temporary = temporaryFile(checkpointFile(dir, next));
+        try(OutputStream out = Files.newOutputStream(temporary)) {
+            sheet.writeSnapshot(out);
+        } catch(IOException e) {
+            Files.deleteIfExists(temporary);
+            throw e;
+        }
+        synchronized(fileLock) {
+            // the snapshot holds every record appended so far, they all
+            // belong in the old segment
+            writePending();
+            synchronized(this) {
+                if(failure != null) {
+                    throw new IOException("Journal could not be written", failure);
+                }
+                logged = 0;
+            }
+            channel.close();
+            segment = next;
+            channel = openSegment(dir, segment, 0);
+        }
+        compactor.execute(() -> installCheckpoint(next));
+    }
+
+    // Write out every change logged, wait for a checkpoint being
+    // written and close the journal.  Raise an IOException if anything
+    // could not be written.
+    public void close() throws IOException {
+        synchronized(this) {
+            if(closed) {
+                return;
+            }
+            closed = true;
+        }
+        writer.shutdown();
+        compactor.shutdown();
+        try {
+            writer.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+            compactor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted closing the journal");
+        }
+        synchronized(fileLock) {
+            writePending();
+            channel.close();
+        }
+        synchronized(this) {
+            if(failure != null) {
+                throw new IOException("Journal could not be written", failure);
+            }
+            if(compactionFailure != null) {
+                throw new IOException("Checkpoint could not be written", compactionFailure);
+            }
+        }
+    }
+
+    // Refuse changes once closed or once records could not be written,
+    // before the sheet is touched so it never runs ahead of the journal
+    private synchronized void checkOpen() {
+        if(closed) {
+            throw new IllegalStateException("Journal is closed");
+        }
+        if(failure != null) {
+            throw new UncheckedIOException("Journal could not be written", failure);
+        }
+    }
+
+    // Add one record to the pending buffer and make sure the writer
+    // will pick it up
+    private synchronized void append(byte op, int ref, String contents) {
+        record.reset();
+        try {
+            // length and CRC32 are filled in below
+            recordOut.writeInt(0);
+            recordOut.writeInt(0);
+            recordOut.writeByte(op);
+            CellRef.writeRef(recordOut, ref);
+            if(contents != null) {
+                byte[] text = contents.getBytes(StandardCharsets.UTF_8);
+                recordOut.writeInt(text.length);
+                recordOut.write(text);
+            }
+        } catch(IOException e) {
+            // writing to memory never fails
+            throw new UncheckedIOException(e);
+        }
+        byte[] bytes = record.toByteArray();
+        int length = bytes.length - HEADER_BYTES;
+        crc.reset();
+        crc.update(bytes, HEADER_BYTES, length);
+        ByteBuffer.wrap(bytes).putInt(0, length).putInt(4, (int) crc.getValue());
+        pending.write(bytes, 0, bytes.length);
+        appended++;
+        logged += bytes.length;
+        if(!flushQueued) {
+            flushQueued = true;
+            writer.execute(this::flush);
+        }
+    }
+
+    private void checkpointIfDue() {
+        boolean due;
+        synchronized(this) {
+            due = logged >= checkpointBytes;
+        }
+        if(due) {
+            try {
+                checkpoint();
+            } catch(IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    // Task of the writer thread
+    private void flush() {
+        synchronized(fileLock) {
+            writePending();
+        }
+    }
+
+    // Write every pending record to the current segment and force it to
+    // disk.  Called holding fileLock; failures are kept in failure.
+    private void writePending() {
+        byte[] data;
+        long upTo;
+        synchronized(this) {
+            flushQueued = false;
+            if(failure != null || pending.size() == 0) {
+                return;
+            }
+            data = pending.toByteArray();
+            pending.reset();
+            upTo = appended;
+        }
+        try {
+            ByteBuffer buffer = ByteBuffer.wrap(data);
+            while(buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            channel.force(false);
+        } catch(IOException e) {
+            synchronized(this) {
+                failure = e;
+                notifyAll();
+            }
+            return;
+        }
+        synchronized(this) {
+            durable = upTo;
+            notifyAll();
+        }
+    }
+
+    // Task of the compactor thread: force the snapshot taken when
+    // segment number was started to disk, then delete the files it
+    // replaces.  The snapshot is renamed into place only once it is on
+    // disk, so recovery never sees half a checkpoint.
+    private void installCheckpoint(long number) {
+        Path target = checkpointFile(dir, number);
+        Path temporary = temporaryFile(target);
+        try {
+            try(FileChannel out = FileChannel.open(temporary, StandardOpenOption.WRITE)) {
+                out.force(true);
+            }
+            Files.move(temporary, target, StandardCopyOption.ATOMIC_MOVE,
+                       StandardCopyOption.REPLACE_EXISTING);
+            syncDirectory(dir);
+            removeBefore(dir, number);
+        } catch(IOException e) {
+            // the segments are kept, nothing is lost
+            synchronized(this) {
+                compactionFailure = e;
+            }
+        }
+    }
+
+    // Replay the records of one segment into the sheet as a single
+    // batch and return the length of its valid records.  A bad record
+    // ends the last segment, the rest of it was torn by a crash.
+    private static long replay(Spreadsheet sheet, Path file, boolean last) throws IOException {
+        long size = Files.size(file);
+        long offset = 0;
+        Map<String, String> changes = new LinkedHashMap<>();
+        CRC32 crc = new CRC32();
+        byte[] payload = new byte[64];
+        try(DataInputStream in = new DataInputStream
+                (new BufferedInputStream(Files.newInputStream(file)))) {
+            while(size - offset >= HEADER_BYTES) {
+                int length = in.readInt();
+                int sum = in.readInt();
+                if(length < MIN_PAYLOAD || length > size - offset - HEADER_BYTES) {
+                    break;
+                }
+                if(length > payload.length) {
+                    payload = new byte[Math.max(length, 2 * payload.length)];
+                }
+                in.readFully(payload, 0, length);
+                crc.reset();
+                crc.update(payload, 0, length);
+                if((int) crc.getValue() != sum || !decode(payload, length, changes)) {
+                    break;
+                }
+                offset += HEADER_BYTES + length;
+            }
+        }
+        if(offset < size && !last) {
+            throw new IOException("Journal segment " + file + " is damaged at byte " + offset);
+        }
+        try {
+            sheet.setCells(changes);
+        } catch(RuntimeException e) {
+            throw new IOException("Journal segment " + file + " could not be replayed", e);
+        }
+        return offset;
+    }
+
+    // Record the change of one payload as setCells() expects it, ""
+    // for a deletion.  Return false if the payload is malformed.
+    private static boolean decode(byte[] payload, int length, Map<String, String> changes) {
+        DataInputStream record = new DataInputStream(new ByteArrayInputStream(payload, 0, length));
+        try {
+            byte op = record.readByte();
+            int ref = CellRef.readRef(record);
+            if(ref == CellRef.NONE) {
+                return false;
+            }
+            String id = CellRef.toID(ref);
+            if(op == DELETE && record.available() == 0) {
+                changes.put(id, "");
+                return true;
+            }
+            if(op == SET && record.readInt() == record.available()) {
+                byte[] text = new byte[record.available()];
+                record.readFully(text);
+                changes.put(id, new String(text, StandardCharsets.UTF_8));
+                return true;
+            }
+        } catch(IOException e) {
+            // too short for what it claims to hold
+        }
+        return false;
+    }
+
+    // Open the numbered segment for appending, cutting it to the given
+    // length, and make sure a new file survives a crash
+    private static FileChannel openSegment(Path dir, long number, long length) throws IOException {
+        Path file = segmentFile(dir, number);
+        boolean created = !Files.exists(file);
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        channel.truncate(length);
+        channel.position(length);
+        if(created) {
+            syncDirectory(dir);
+        }
+        return channel;
+    }
+
+    // Delete the segments and checkpoints numbered below number
+    private static void removeBefore(Path dir, long number) throws IOException {
+        try(DirectoryStream<Path> files = Files.newDirectoryStream(dir)) {
+            for(Path file : files) {
+                String name = file.getFileName().toString();
+                long found = Math.max(fileNumber(name, "journal-", ".log"),
+                                      fileNumber(name, "checkpoint-", ".snap"));
+                if(found > 0 && found < number) {
+                    Files.deleteIfExists(file);
+                }
+            }
+        }
+    }
+
+    // Make files created or renamed in the directory survive a crash.
+    // Not every platform can open a directory; there it is skipped.
+    private static void syncDirectory(Path dir) {
+        try(FileChannel channel = FileChannel.open(dir, StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch(IOException e) {
+            // best effort only
+        }
+    }
+
+    private static Path segmentFile(Path dir, long number) {
+        return dir.resolve(String.format("journal-%010d.log", number));
+    }
+
+    // Name a checkpoint is written under until it is complete
+    private static Path temporaryFile(Path checkpoint) {
+        return checkpoint.resolveSibling(checkpoint.getFileName() + ".tmp");
+    }
+
+    private static Path checkpointFile(Path dir, long number) {
+        return dir.resolve(String.format("checkpoint-%010d.snap", number));
+    }
+
+    // Return the number in a file name made of prefix, digits and
+    // suffix, or 0 if the name has another form
+    private static long fileNumber(String name, String prefix, String suffix) {
+        if(!name.startsWith(prefix) || !name.endsWith(suffix)
+           || name.length() == prefix.length() + suffix.length()) {
+            return 0;
+        }
+        long number = 0;
+        for(int i = prefix.length(); i < name.length() - suffix.length(); i++) {
+            char c = name.charAt(i);
+            if(c < '0' || c > '9' || number > Long.MAX_VALUE / 10 - 1) {
+                return 0;
+            }
+            number = number * 10 + (c - '0');
+        }
+        return number;
+    }
+
+    private static Thread daemon(Runnable task, String name) {
+        Thread thread = new Thread(task, name);
+        thread.setDaemon(true);
+        return thread;
+    }
+}
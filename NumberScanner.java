@@ -0,0 +1,163 @@
+// Decides whether cell contents are a number and parses the number in
+// the same pass over the characters, without throwing for contents
+// which are not numbers.  Cell.make() used to try Double.parseDouble()
+// and catch the NumberFormatException, so every string and formula cell
+// paid for building and throwing an exception with a stack trace.
+//
+// Exactly the strings accepted by Double.parseDouble() are numbers and
+// they get the same value.  Plain decimals such as "12", "-3.25" or
+// "1.5e3" are scanned here; when they have at most 18 significant
+// digits forming a mantissa below 2^53 and a power of ten up to 22 the
+// value is computed exactly with a single multiplication or division
+// (Clinger's fast path).  Longer decimals, hexadecimal forms and the
+// "NaN" and "Infinity" spellings are handed to Double.parseDouble().
+// The class only holds static methods.
+public class NumberScanner {
+
+    // Returned by scan() for contents which are not a number.  It is a
+    // NaN with a payload which parsing never produces, test for it with
+    // isNotNumber().
+    public static final double NOT_A_NUMBER = Double.longBitsToDouble(0x7ff80000004e4e4eL);
+
+    private static final long NOT_A_NUMBER_BITS = Double.doubleToRawLongBits(NOT_A_NUMBER);
+
+    // Powers of ten which are exact doubles
+    private static final double[] POW10 = {
+        1e0,  1e1,  1e2,  1e3,  1e4,  1e5,  1e6,  1e7,  1e8,  1e9,  1e10,
+        1e11, 1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21,
+        1e22
+    };
+
+    private NumberScanner() {
+    }
+
+    // Return whether the given result of scan() means the contents were
+    // not a number.  A NaN parsed from "NaN" is a number.
+    public static boolean isNotNumber(double value) {
+        return Double.doubleToRawLongBits(value) == NOT_A_NUMBER_BITS;
+    }
+
+    // Return the value of the given contents if Double.parseDouble()
+    // would accept them, otherwise NOT_A_NUMBER.  The contents are
+    // expected to be trimmed.
+    //
+    // Target Complexity: O(length of s)
+    public static double scan(String s) {
+        int length = s.length();
+        int i = 0;
+        if(length == 0) {
+            return NOT_A_NUMBER;
+        }
+        boolean negative = false;
+        char c = s.charAt(0);
+        if(c == '+' || c == '-') {
+            negative = (c == '-');
+            i++;
+            if(i == length) {
+                return NOT_A_NUMBER;
+            }
+            c = s.charAt(i);
+        }
+        if(c == 'N' || c == 'I') {
+            if(s.startsWith("NaN", i) && i + 3 == length) {
+                return Double.NaN;
+            }
+            if(s.startsWith("Infinity", i) && i + 8 == length) {
+                return negative ? Double.NEGATIVE_INFINITY : Double.POSITIVE_INFINITY;
+            }
+            return NOT_A_NUMBER;
+        }
+        if(c == '0' && i + 1 < length && (s.charAt(i + 1) == 'x' || s.charAt(i + 1) == 'X')) {
+            return scanHex(s);
+        }
+
+        long mantissa = 0;   // significant digits read so far
+        int digits = 0;      // number of digits in mantissa
+        int exponent = 0;    // power of ten applied to mantissa
+        boolean anyDigit = false;
+        boolean truncated = false; // digits past 18 were dropped
+        // integer part
+        for(; i < length && (c = s.charAt(i)) >= '0' && c <= '9'; i++) {
+            anyDigit = true;
+            if(digits < 18) {
+                if(mantissa != 0 || c != '0') {
+                    mantissa = mantissa * 10 + (c - '0');
+                    digits++;
+                }
+            } else {
+                exponent++;
+                truncated |= (c != '0');
+            }
+        }
+        // fraction part
+        if(i < length && s.charAt(i) == '.') {
+            for(i++; i < length && (c = s.charAt(i)) >= '0' && c <= '9'; i++) {
+                anyDigit = true;
+                if(digits < 18) {
+                    if(mantissa != 0 || c != '0') {
+                        mantissa = mantissa * 10 + (c - '0');
+                        digits++;
+                    }
+                    exponent--;
+                } else {
+                    truncated |= (c != '0');
+                }
+            }
+        }
+        if(!anyDigit) {
+            return NOT_A_NUMBER;
+        }
+        // exponent part
+        if(i < length && (s.charAt(i) == 'e' || s.charAt(i) == 'E')) {
+            i++;
+            boolean negativeExponent = false;
+            if(i < length && (s.charAt(i) == '+' || s.charAt(i) == '-')) {
+                negativeExponent = (s.charAt(i) == '-');
+                i++;
+            }
+            int start = i;
+            int value = 0;
+            for(; i < length && (c = s.charAt(i)) >= '0' && c <= '9'; i++) {
+                // anything this large over or underflows anyway
+                if(value < 100000) {
+                    value = value * 10 + (c - '0');
+                }
+            }
+            if(i == start) {
+                return NOT_A_NUMBER;
+            }
+            exponent += negativeExponent ? -value : value;
+        }
+        // optional type suffix which Double.parseDouble() ignores
+        if(i < length) {
+            c = s.charAt(i);
+            if(c == 'f' || c == 'F' || c == 'd' || c == 'D') {
+                i++;
+            }
+        }
+        if(i != length) {
+            return NOT_A_NUMBER;
+        }
+
+        if(!truncated && mantissa < (1L << 53) && exponent >= -22 && exponent <= 22) {
+            // both mantissa and power of ten are exact doubles so one
+            // correctly rounded operation gives the correctly rounded
+            // value
+            double value = (double) mantissa;
+            value = exponent < 0 ? value / POW10[-exponent] : value * POW10[exponent];
+            return negative ? -value : value;
+        }
+        // valid decimal syntax, this cannot throw
+        return Double.parseDouble(s);
+    }
+
+    // Hexadecimal floating point such as "0x1.8p1" is rare enough in
+    // cell contents to leave to Double.parseDouble()
+    private static double scanHex(String s) {
+        try {
+            return Double.parseDouble(s);
+        } catch(NumberFormatException e) {
+            return NOT_A_NUMBER;
+        }
+    }
+}
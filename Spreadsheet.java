@@ -1,21 +1,70 @@
 import java.util.Map;
-import java.util.HashMap;
-import java.util.Set;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.Arrays;
+import java.util.ArrayList;
 import java.util.Iterator;
-import java.util.Scanner;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.io.BufferedWriter;
+import java.io.BufferedReader;
+import java.io.StringReader;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.util.zip.CRC32;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 // Basic model for a spreadsheet.
 public class Spreadsheet{
     
-    // Stores Cell IDs as keys, actual Cell Objects as values
-    private Map<String, Cell> cellMap; 
+    // Stores packed CellRefs of the Cell IDs as keys, actual Cell
+    // Objects as values.  IDs are parsed to CellRefs once in the public
+    // methods which take them.
+    private CellMap cellMap; 
     // For detecting cycle
     private DAG dag; 
+    // Pool updating independent cells in parallel during recalculation,
+    // null to recalculate on the caller's thread
+    private ForkJoinPool recalcPool;
+    // Changes recorded since beginBatch() by cell ID, "" for a
+    // deletion, null when no batch is open
+    private Map<String, String> batch;
+    
+    // Levels with fewer cells than this are updated on the caller's
+    // thread, handing them to the pool costs more than it saves
+    private static final int PARALLEL_LEVEL_SIZE = 512;
+    // Number of cells a single task updates without splitting further
+    private static final int UPDATE_CHUNK = 128;
     
     // Construct a new empty spreadsheet
     public Spreadsheet() {
-        cellMap = new HashMap<>();
+        cellMap = new CellMap();
         dag = new DAG();
+        recalcPool = null;
+        batch = null;
+    }
+    
+    // Turn parallel recalculation on or off.  When on, the cells
+    // downstream of a change are split into dependency levels and the
+    // cells of a large level are updated concurrently on the common
+    // ForkJoinPool.  Off by default.
+    public void setParallelRecalc(boolean parallel) {
+        setParallelRecalc(parallel ? ForkJoinPool.commonPool() : null);
+    }
+    
+    // Recalculate in parallel on the given pool, or on the caller's
+    // thread if pool is null.
+    public void setParallelRecalc(ForkJoinPool pool) {
+        recalcPool = pool;
     }
     
     // Return a string representation of the spreadsheet. This should
@@ -47,19 +96,14 @@ public class Spreadsheet{
         StringBuilder builder = new StringBuilder();
         builder.append(String.format("%6s |%7s | %s\n", id, value, contents));
         builder.append("-------+--------+---------------\n");
-        // get a set from cellMap that contains keys and values
-        Set<Map.Entry<String, Cell>> cellSet = cellMap.entrySet();
-        Iterator<Map.Entry<String, Cell>> iterator = cellSet.iterator();
-        while(iterator.hasNext()) {
-            Map.Entry<String, Cell> cellMapEntry = iterator.next();
-            // if the Cell Object with the ID exsits
-            if(cellMapEntry.getValue() != null) {
-                id = cellMapEntry.getKey();
-                value = getCellDisplayString(id);
-                contents = getCellContents(id);
-                // Append ID, value, and contents in well formated string
-                builder.append(String.format("%6s |%7s | '%s'\n", id, value, contents));
-            }
+        // visit every cell of cellMap
+        for(int at = cellMap.next(-1); at >= 0; at = cellMap.next(at)) {
+            Cell cell = cellMap.valueAt(at);
+            id = CellRef.toID(cellMap.keyAt(at));
+            value = cell.displayString();
+            contents = cell.contents();
+            // Append ID, value, and contents in well formated string
+            builder.append(String.format("%6s |%7s | '%s'\n", id, value, contents));
         }
         builder.append("\nCell Dependencies\n");
         // Append upstreamLinks and downstreamLinks
@@ -71,34 +115,324 @@ public class Spreadsheet{
     // is each cell id and its contents on a line.  You may choose
     // whatever format you like so long as the spreadsheet can be
     // completely recreated using the fromSaveString(s) method.
+    //
+    // The string is built with writeSaveString(), save() and
+    // writeSaveString() avoid holding it all in memory.
     public String toSaveString() {
         StringBuilder builder = new StringBuilder();
-        // get a set from cellMap that contains keys and values
-        Set<Map.Entry<String, Cell>> cellSet = cellMap.entrySet(); 
-        Iterator<Map.Entry<String, Cell>> iterator = cellSet.iterator();
-        while(iterator.hasNext()) {
-            Map.Entry<String, Cell> cellMapEntry = iterator.next();
-            // Append a Cell's ID and contents
-            String id = cellMapEntry.getKey();
-            String contents = getCellContents(id);
-            builder.append(String.format("%s %s\n", id, contents));
+        try {
+            writeSaveString(builder);
+        } catch(IOException e) {
+            // appending to a StringBuilder never fails
+            throw new UncheckedIOException(e);
         }
         return builder.toString();
     }
     
+    // Write the save format of the spreadsheet to the given output cell
+    // by cell: each cell id and its contents on a line.  Nothing but
+    // the current line is buffered here, so with a buffered Writer the
+    // memory used stays constant however large the sheet is.
+    //
+    // TARGET COMPLEXITY: O(C)
+    //   C : total length of the contents of all cells
+    public void writeSaveString(Appendable out) throws IOException {
+        // visit every cell of cellMap
+        for(int at = cellMap.next(-1); at >= 0; at = cellMap.next(at)) {
+            // Append a Cell's ID and contents
+            CellRef.appendID(out, cellMap.keyAt(at));
+            out.append(' ');
+            out.append(cellMap.valueAt(at).contents());
+            out.append('\n');
+        }
+    }
+    
+    // Write the save format of the spreadsheet to the given channel in
+    // UTF-8 through a buffer, as writeSaveString(Appendable).  The
+    // channel is left open.
+    public void writeSaveString(WritableByteChannel channel) throws IOException {
+        Writer out = new BufferedWriter(Channels.newWriter(channel, StandardCharsets.UTF_8.newEncoder(), -1));
+        writeSaveString(out);
+        out.flush();
+    }
+    
+    // Save the spreadsheet to the named file in UTF-8, replacing its
+    // contents, as writeSaveString(Appendable).
+    public void save(Path file) throws IOException {
+        try(Writer out = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+            writeSaveString(out);
+        }
+    }
+    
     // Load a spreadsheet from the given save string. Typical
     // implementations will creat an empty spreadsheet and repeatedly
     // read input from the provided string setting cells based on the
     // contents read.
     public static Spreadsheet fromSaveString(String s) {
-        Scanner input = new Scanner(s);
+        try {
+            return fromSaveReader(new BufferedReader(new StringReader(s)));
+        } catch(IOException e) {
+            // reading from a String never fails
+            throw new UncheckedIOException(e);
+        }
+    }
+    
+    // Load a spreadsheet from the named file in the save format,
+    // reading it in UTF-8 line by line through a buffered channel
+    // rather than slurping it into one String first.
+    public static Spreadsheet load(Path file) throws IOException {
+        try(BufferedReader in = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            return fromSaveReader(in);
+        }
+    }
+    
+    // Magic number "ACKS" and version starting every snapshot
+    private static final int SNAPSHOT_MAGIC = 0x41434B53;
+    private static final int SNAPSHOT_VERSION = 1;
+    // Kinds of cells in a snapshot
+    private static final byte SNAPSHOT_NUMBER = 0;
+    private static final byte SNAPSHOT_STRING = 1;
+    private static final byte SNAPSHOT_FORMULA = 2;
+    
+    // Write a binary snapshot of the spreadsheet to the given stream.
+    // Unlike the save format it records everything needed to open the
+    // sheet again without parsing or recalculating anything:
+    //
+    //   magic, version
+    //   formula count, then per distinct formula its text and compiled
+    //     program (CompiledFormula.writeTo)
+    //   cell count, then per cell its CellRef, kind and then its
+    //     contents and value (number cells), contents (string cells) or
+    //     value and formula index (formula cells, whose contents are
+    //     the formula text)
+    //   the DAG with its topological order (DAG.writeTo)
+    //   CRC32 of everything before it
+    //
+    // Formulas shared by several cells are written once.  The stream is
+    // flushed but left open.
+    //
+    // TARGET COMPLEXITY: O(C + V + E)
+    //   C : total length of the contents of all cells
+    public void writeSnapshot(OutputStream stream) throws IOException {
+        ChecksumOutput checked = new ChecksumOutput(stream);
+        DataOutputStream out = new DataOutputStream(checked);
+        out.writeInt(SNAPSHOT_MAGIC);
+        out.writeInt(SNAPSHOT_VERSION);
+        
+        Map<FormulaCache.Parsed, Integer> formulas = new IdentityHashMap<>();
+        for(int at = cellMap.next(-1); at >= 0; at = cellMap.next(at)) {
+            Cell cell = cellMap.valueAt(at);
+            if(cell instanceof Cell.FormulaCell) {
+                FormulaCache.Parsed parsed = ((Cell.FormulaCell) cell).parsed();
+                if(!formulas.containsKey(parsed)) {
+                    formulas.put(parsed, formulas.size());
+                }
+            }
+        }
+        FormulaCache.Parsed[] table = new FormulaCache.Parsed[formulas.size()];
+        for(Map.Entry<FormulaCache.Parsed, Integer> entry : formulas.entrySet()) {
+            table[entry.getValue()] = entry.getKey();
+        }
+        out.writeInt(table.length);
+        for(FormulaCache.Parsed parsed : table) {
+            writeText(out, parsed.text());
+            parsed.program().writeTo(out);
+        }
+        
+        out.writeInt(cellMap.size());
+        for(int at = cellMap.next(-1); at >= 0; at = cellMap.next(at)) {
+            Cell cell = cellMap.valueAt(at);
+            CellRef.writeRef(out, cellMap.keyAt(at));
+            if(cell instanceof Cell.FormulaCell) {
+                out.writeByte(SNAPSHOT_FORMULA);
+                writeValue(out, cell.doubleValue());
+                out.writeInt(formulas.get(((Cell.FormulaCell) cell).parsed()));
+            } else if(cell instanceof Cell.NumberCell) {
+                out.writeByte(SNAPSHOT_NUMBER);
+                writeText(out, cell.contents());
+                writeValue(out, cell.doubleValue());
+            } else {
+                out.writeByte(SNAPSHOT_STRING);
+                writeText(out, cell.contents());
+            }
+        }
+        
+        dag.writeTo(out);
+        out.writeLong(checked.checksum());
+        out.flush();
+    }
+    
+    // Read a spreadsheet from a binary snapshot written by
+    // writeSnapshot().  Cells get their saved values and the DAG its
+    // saved order; no formula is parsed or evaluated.  Formulas already
+    // in FormulaCache.shared() use the cached entry, the others the
+    // program from the snapshot, shared only by the cells of this sheet.
+    // A stream which is not a snapshot, has another version, is
+    // truncated or fails its checksum raises an IOException.  The
+    // stream is read ahead in blocks and left open.
+    //
+    // TARGET COMPLEXITY: O(C + V log V + E)
+    public static Spreadsheet readSnapshot(InputStream stream) throws IOException {
+        ChecksumInput checked = new ChecksumInput(stream);
+        DataInputStream in = new DataInputStream(checked);
+        if(in.readInt() != SNAPSHOT_MAGIC) {
+            throw new IOException("Not a spreadsheet snapshot");
+        }
+        int version = in.readInt();
+        if(version != SNAPSHOT_VERSION) {
+            throw new IOException("Unsupported snapshot version " + version);
+        }
+        
+        FormulaCache cache = FormulaCache.shared();
+        // counts and lengths are not trusted for sizing arrays until the
+        // data behind them has been read
+        int formulaCount = readCount(in);
+        ArrayList<FormulaCache.Parsed> table = new ArrayList<>();
+        for(int i = 0; i < formulaCount; i++) {
+            String text = readText(in);
+            table.add(cache.restore(text, CompiledFormula.readFrom(in)));
+        }
+        
         Spreadsheet sheet = new Spreadsheet();
-        while(input.hasNext()) {
+        int count = readCount(in);
+        for(int i = 0; i < count; i++) {
+            int ref = CellRef.readRef(in);
+            byte kind = in.readByte();
+            Cell cell;
+            if(kind == SNAPSHOT_FORMULA) {
+                double value = readValue(in);
+                int index = in.readInt();
+                if(index < 0 || index >= formulaCount) {
+                    throw new IOException("Bad formula index " + index + " in snapshot");
+                }
+                cell = new Cell.FormulaCell(table.get(index), value);
+            } else if(kind == SNAPSHOT_NUMBER) {
+                String contents = readText(in);
+                cell = new Cell.NumberCell(contents, readValue(in));
+            } else if(kind == SNAPSHOT_STRING) {
+                cell = new Cell.StringCell(readText(in));
+            } else {
+                throw new IOException("Bad cell kind " + kind + " in snapshot");
+            }
+            if(ref == CellRef.NONE || sheet.cellMap.put(ref, cell) != null) {
+                throw new IOException("Bad or repeated cell reference " + ref + " in snapshot");
+            }
+        }
+        
+        sheet.dag = DAG.readFrom(in);
+        long expected = checked.checksum();
+        if(in.readLong() != expected) {
+            throw new IOException("Snapshot checksum does not match");
+        }
+        return sheet;
+    }
+    
+    // Write a binary snapshot of the spreadsheet to the named file,
+    // replacing its contents, as writeSnapshot(OutputStream).
+    public void saveSnapshot(Path file) throws IOException {
+        try(OutputStream out = Files.newOutputStream(file)) {
+            writeSnapshot(out);
+        }
+    }
+    
+    // Load a spreadsheet from a binary snapshot in the named file, as
+    // readSnapshot(InputStream).
+    public static Spreadsheet loadSnapshot(Path file) throws IOException {
+        try(InputStream in = Files.newInputStream(file)) {
+            return readSnapshot(in);
+        }
+    }
+    
+    // Strings in a snapshot are their UTF-8 length followed by their
+    // UTF-8 bytes; writeUTF() would limit contents to 64K bytes
+    private static void writeText(DataOutputStream out, String text) throws IOException {
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+    
+    private static String readText(DataInputStream in) throws IOException {
+        int length = readCount(in);
+        // grow the array as the bytes arrive, a damaged length ends in
+        // an EOFException rather than a huge allocation
+        byte[] bytes = new byte[Math.min(length, 1024)];
+        in.readFully(bytes);
+        while(bytes.length < length) {
+            int read = bytes.length;
+            bytes = Arrays.copyOf(bytes, (int) Math.min(length, 2L * read));
+            in.readFully(bytes, read, bytes.length - read);
+        }
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+    
+    // Values are written with their raw bits, writeDouble() would turn
+    // the ERROR value into a plain NaN
+    private static void writeValue(DataOutputStream out, double value) throws IOException {
+        out.writeLong(Double.doubleToRawLongBits(value));
+    }
+    
+    private static double readValue(DataInputStream in) throws IOException {
+        return Double.longBitsToDouble(in.readLong());
+    }
+    
+    // Read a length or count which must not be negative
+    private static int readCount(DataInputStream in) throws IOException {
+        int count = in.readInt();
+        if(count < 0) {
+            throw new IOException("Negative count " + count + " in snapshot");
+        }
+        return count;
+    }
+    
+    // Load a spreadsheet from save format lines read from the given
+    // reader.  Each line is split by hand the way the Scanner used to
+    // read it: blank lines are skipped, the ID runs from the first
+    // non-whitespace character to the next whitespace, and the
+    // contents are the rest of the line.
+    //
+    // The sheet is bulk loaded: every line is read first, a later line
+    // for the same ID replacing an earlier one whose contents are only
+    // checked to be valid, and then all cells are
+    // set at once with setCells().  The DAG is built in one pass and
+    // checked for cycles once, and every formula is evaluated exactly
+    // once in topological order, so forward references cost nothing
+    // extra.  If the cells contain a cycle a DAG.CycleException is
+    // raised.
+    //
+    // TARGET COMPLEXITY: O(C + V + E)
+    //   C : number of characters read
+    //   V : number of cells
+    //   E : number of dependencies between cells
+    public static Spreadsheet fromSaveReader(BufferedReader in) throws IOException {
+        Map<String, String> cells = new LinkedHashMap<>();
+        String line;
+        while((line = in.readLine()) != null) {
+            int length = line.length();
+            int start = 0;
+            while(start < length && Character.isWhitespace(line.charAt(start))) {
+                start++;
+            }
+            if(start == length) {
+                // blank line
+                continue;
+            }
+            int end = start;
+            while(end < length && !Character.isWhitespace(line.charAt(end))) {
+                end++;
+            }
             // Read the ID and contents to set a Cell object
-            String id = input.next();
-            String contents = input.nextLine();
-            sheet.setCell(id, contents);
-        } 
+            String id = line.substring(start, end);
+            String contents = line.substring(end);
+            String replaced = cells.put(id, contents);
+            if(replaced != null && replaced.length() > 0) {
+                // the earlier contents are never set, check them here
+                // so a bad line fails the load as it always did
+                verifyIDFormat(id);
+                Cell.make(replaced);
+            }
+        }
+        Spreadsheet sheet = new Spreadsheet();
+        sheet.setCells(cells);
         return sheet;
     }
     
@@ -108,10 +442,10 @@ public class Spreadsheet{
     //  ^[A-Z]+[1-9][0-9]*$
     // 
     // to be well formatted. If the ID is not formatted correctly, throw
-    // a RuntimeException.  The str.matches(..) method is useful for
-    // this method.
+    // a RuntimeException.  The check is a single pass over the
+    // characters by CellRef.isWellFormed(..) rather than a regex.
     public static void verifyIDFormat(String id) {
-        if(!id.matches("^[A-Z]+[1-9][0-9]*$")) {
+        if(!CellRef.isWellFormed(id)) {
             throw new RuntimeException
                 (String.format("Cell id '%s' is badly formatted", id));
         }
@@ -120,7 +454,7 @@ public class Spreadsheet{
     // Retrive a string which should be displayed for the value of the
     // cell with the given ID. Return "" if the specified cell is empty.
     public String getCellDisplayString(String id) {
-        Cell cell = cellMap.get(id);
+        Cell cell = cellMap.get(CellRef.lookup(id));
         if(cell == null) {
             return "";
         }
@@ -130,7 +464,7 @@ public class Spreadsheet{
     // Retrive a string which is the actual contents of the cell with
     // the given ID. Return "" if the specified cell is empty.
     public String getCellContents(String id) {
-        Cell cell = cellMap.get(id);
+        Cell cell = cellMap.get(CellRef.lookup(id));
         if(cell == null) {
             return "";
         }
@@ -139,49 +473,62 @@ public class Spreadsheet{
     
     // Delete the contents of the cell with the given ID. Update all
     // downstream cells of the change. If specified cell is empty, do
-    // nothing.
+    // nothing.  While a batch is open the deletion is only recorded.
     public void deleteCell(String id) {
-        if(cellMap.get(id) == null) {
+        if(batch != null) {
+            batch.put(id, "");
+            return;
+        }
+        deleteCell(CellRef.lookup(id));
+    }
+    
+    // Delete the cell with the given CellRef, as deleteCell(String).
+    private void deleteCell(int ref) {
+        if(cellMap.get(ref) == null) {
             return;
         }
         // Remove Cell Object from cellMap and Cell ID from dag
-        cellMap.remove(id);
-        dag.remove(id);
-        notifyDownstreamOfChange(id);
+        cellMap.remove(ref);
+        dag.remove(ref);
+        notifyDownstreamOfChange(ref);
     }
     
     // Set the given cell with the given contents. If contents is "" or
-    // null, delete the cell indicated.
+    // null, delete the cell indicated.  While a batch is open the change
+    // is only recorded, see beginBatch().
     public void setCell(String id, String contents) {
+        if(batch != null) {
+            if(contents != null && contents.length() > 0) {
+                // report a bad ID right away rather than on commit
+                verifyIDFormat(id);
+            }
+            batch.put(id, contents);
+            return;
+        }
         // If contents is "" or null, delete the cell indicated.
         if(contents == null || contents.length() == 0) {
             deleteCell(id);
             return;
         }
         
-        // store the original state of the Cell Object to variable oldCell
-        Cell oldCell = cellMap.get(id); 
         verifyIDFormat(id);
-        // Delete the Cell Object that match to the CellID in cellMap
-        cellMap.remove(id); 
-        // Create a new cell with contents
+        int ref = CellRef.parse(id);
+        // Create the new cell before touching cellMap or dag so that
+        // contents which fail to parse leave the old cell in place
         Cell newCell = Cell.make(contents);
         // Extract the upstream dependencies for the newCell 
-        Set<String> upstreamIDS = newCell.getUpstreamIDs();
+        int[] upstreamRefs = newCell.getUpstreamRefs();
         
         try {
             // Try add newCell to dag
-            dag.add(id, upstreamIDS);
+            dag.add(ref, upstreamRefs);
             // If successful, no cycles are created and newCell is valid
-            cellMap.put(id, newCell);
+            cellMap.put(ref, newCell);
             newCell.updateValue(cellMap);
-            notifyDownstreamOfChange(id);
+            notifyDownstreamOfChange(ref);
         } catch(DAG.CycleException e) {
-            // dag.add(id, upstreamIDS) caused a cyle in the dag
-            // setCell failed
-            // we should put the newCell back to its original state
-            // and throw a new DAG.CycleException
-            cellMap.put(id, oldCell);
+            // dag.add(id, upstreamIDS) caused a cyle in the dag and left
+            // it unchanged, the old cell is still in cellMap
             throw new DAG.CycleException
                 (String.format
                      ("Cell %s with formula '%s' creates cycle: ", id, contents)
@@ -189,21 +536,324 @@ public class Spreadsheet{
         }
     }
     
+    // Open a batch of changes.  Until commit() is called setCell() and
+    // deleteCell() only record the changes, the rest of the spreadsheet
+    // keeps showing the state before the batch.  Only one batch can be
+    // open at a time.
+    public void beginBatch() {
+        if(batch != null) {
+            throw new RuntimeException("A batch of changes is already open");
+        }
+        batch = new LinkedHashMap<>();
+    }
+    
+    // Apply every change recorded since beginBatch() with setCells()
+    // and close the batch.  If the changes fail, for instance because
+    // they create a cycle, none of them is applied and the batch is
+    // closed all the same.
+    public void commit() {
+        if(batch == null) {
+            throw new RuntimeException("No batch of changes is open");
+        }
+        Map<String, String> changes = batch;
+        batch = null;
+        setCells(changes);
+    }
+    
+    // Set many cells at once, each ID mapped to its new contents, "" or
+    // null to delete the cell.  The end result is that of calling
+    // setCell() for every entry, but the dependencies are updated in a
+    // single pass over the DAG, checked for cycles once, and the union
+    // of the changed cells and everything downstream of them is
+    // recalculated once in topological order.
+    //
+    // The change is atomic: if an ID is badly formatted, a formula
+    // cannot be parsed or the new dependencies create a cycle, a
+    // RuntimeException (DAG.CycleException for a cycle) is thrown and
+    // the spreadsheet is left unchanged.
+    //
+    // TARGET COMPLEXITY: O(V + E + C)
+    //   V : number of cells with dependencies
+    //   E : number of dependencies
+    //   C : total length of the new contents
+    public void setCells(Map<String, String> changes) {
+        int[] refs = new int[changes.size()];
+        Cell[] newCells = new Cell[changes.size()];
+        int[][] upstreamRefs = new int[changes.size()][];
+        int count = 0;
+        // Make every new cell before touching anything
+        Iterator<Map.Entry<String, String>> iterator = changes.entrySet().iterator();
+        while(iterator.hasNext()) {
+            Map.Entry<String, String> change = iterator.next();
+            String id = change.getKey();
+            String contents = change.getValue();
+            if(contents == null || contents.length() == 0) {
+                // deletion, an ID which names no cell has nothing to delete
+                refs[count] = CellRef.lookup(id);
+                if(refs[count] == CellRef.NONE) {
+                    continue;
+                }
+                newCells[count] = null;
+                upstreamRefs[count] = null;
+            } else {
+                verifyIDFormat(id);
+                refs[count] = CellRef.parse(id);
+                newCells[count] = Cell.make(contents);
+                upstreamRefs[count] = newCells[count].getUpstreamRefs();
+            }
+            count++;
+        }
+        if(count < refs.length) {
+            refs = Arrays.copyOf(refs, count);
+            newCells = Arrays.copyOf(newCells, count);
+            upstreamRefs = Arrays.copyOf(upstreamRefs, count);
+        }
+        
+        try {
+            dag.addAll(refs, upstreamRefs);
+        } catch(DAG.CycleException e) {
+            // dag.addAll(..) reverted itself and no cell was changed
+            throw new DAG.CycleException
+                (String.format("Setting %d cells creates cycle: ", count)
+                 + e.getMessage());
+        }
+        for(int i = 0; i < count; i++) {
+            if(newCells[i] == null) {
+                cellMap.remove(refs[i]);
+            } else {
+                cellMap.put(refs[i], newCells[i]);
+                newCells[i].markDirty();
+            }
+        }
+        // Update the changed cells and everything downstream of them
+        // once, then the changed cells without any links which are not
+        // part of that order
+        if(recalcPool != null) {
+            updateByLevel(dag.downstreamLevels(refs));
+        } else {
+            updateInOrder(dag.downstreamOrder(refs));
+        }
+        for(int i = 0; i < count; i++) {
+            if(newCells[i] != null && newCells[i].isDirty()) {
+                newCells[i].updateValue(cellMap);
+            }
+        }
+    }
+    
     // Notify all downstream cells of a change in the given cell.
-    // Recursively notify subsequent cells. Guaranteed to terminate so
-    // long as there are no cycles in cell dependencies.
+    // The dirty subgraph reachable through downstream links is
+    // collected once and put in topological order so that every
+    // affected cell is updated exactly once, after all of the cells it
+    // depends on. Guaranteed to terminate so long as there are no
+    // cycles in cell dependencies.
+    //
+    // TARGET COMPLEXITY: O(D + L_D)
+    //   D   : number of cells downstream of id
+    //   L_D : number of links between those cells
     public void notifyDownstreamOfChange(String id) {
-        // Get the set of downstream cells
-        Set<String> downstreamLinks = dag.getDownstreamLinks(id);
-        Iterator<String> iterator = downstreamLinks.iterator();
-        while(iterator.hasNext()) {
-            // for each downstream cell
-            // update its value and notify its downstream cells
-            String cellID = iterator.next();
-            Cell cell = cellMap.get(cellID);
-            cell.updateValue(cellMap);
-            notifyDownstreamOfChange(cellID);
+        notifyDownstreamOfChange(CellRef.lookup(id));
+    }
+    
+    // Notify all downstream cells of a change in the cell with the given
+    // CellRef, as notifyDownstreamOfChange(String).
+    private void notifyDownstreamOfChange(int id) {
+        if(recalcPool != null) {
+            updateByLevel(dag.downstreamLevels(id));
+        } else {
+            updateInOrder(dag.downstreamOrder(id));
         }
     }
     
-}
\ No newline at end of file
+    // Update the cells with the given CellRefs, which are in
+    // topological order, on the caller's thread.
+    private void updateInOrder(int[] order) {
+        // mark the whole dirty subgraph before updating any of it
+        for(int i = 0; i < order.length; i++) {
+            Cell cell = cellMap.get(order[i]);
+            if(cell != null) {
+                cell.markDirty();
+            }
+        }
+        for(int i = 0; i < order.length; i++) {
+            // each cell is updated after all of its upstream cells,
+            // cells already brought up to date on demand are skipped
+            Cell cell = cellMap.get(order[i]);
+            if(cell != null && cell.isDirty()) {
+                cell.updateValue(cellMap);
+            }
+        }
+    }
+    
+    // Update the cells grouped in the given dependency levels level by
+    // level.  No cell of a level depends on another cell of the same
+    // level and
+    // every earlier level is finished first, so the cells of a level
+    // are updated concurrently without ever evaluating a dirty
+    // upstream cell on demand.  cellMap is only read while the pool
+    // runs.
+    //
+    // TARGET COMPLEXITY: O(D + L_D) work, O(levels) sequential steps
+    private void updateByLevel(int[][] levels) {
+        // mark the whole dirty subgraph before updating any of it
+        for(int l = 0; l < levels.length; l++) {
+            for(int i = 0; i < levels[l].length; i++) {
+                Cell cell = cellMap.get(levels[l][i]);
+                if(cell != null) {
+                    cell.markDirty();
+                }
+            }
+        }
+        for(int l = 0; l < levels.length; l++) {
+            UpdateCells update = new UpdateCells(cellMap, levels[l], 0, levels[l].length);
+            if(levels[l].length < PARALLEL_LEVEL_SIZE) {
+                update.compute();
+            } else {
+                // returns once the whole level is updated
+                recalcPool.invoke(update);
+            }
+        }
+    }
+    
+    // Task updating the cells refs[from..to) of one dependency level,
+    // split in halves until the pieces are small.
+    private static class UpdateCells extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        
+        private final CellMap cellMap;
+        private final int[] refs;
+        private final int from;
+        private final int to;
+        
+        UpdateCells(CellMap cellMap, int[] refs, int from, int to) {
+            this.cellMap = cellMap;
+            this.refs = refs;
+            this.from = from;
+            this.to = to;
+        }
+        
+        protected void compute() {
+            if(to - from > UPDATE_CHUNK) {
+                int middle = (from + to) >>> 1;
+                invokeAll(new UpdateCells(cellMap, refs, from, middle),
+                          new UpdateCells(cellMap, refs, middle, to));
+                return;
+            }
+            for(int i = from; i < to; i++) {
+                Cell cell = cellMap.get(refs[i]);
+                if(cell != null && cell.isDirty()) {
+                    cell.updateValue(cellMap);
+                }
+            }
+        }
+    }
+    
+    // Buffers snapshot output and keeps the CRC32 of everything written.
+    // DataOutputStream hands over every number a byte at a time; unlike
+    // BufferedOutputStream with a CheckedOutputStream this does no
+    // locking per byte and checksums whole buffers.
+    private static class ChecksumOutput extends OutputStream {
+        private final OutputStream out;
+        private final CRC32 crc = new CRC32();
+        private final byte[] buffer = new byte[1 << 16];
+        private int count;   // bytes in buffer
+        private int checked; // bytes of buffer already in crc
+        
+        ChecksumOutput(OutputStream out) {
+            this.out = out;
+        }
+        
+        public void write(int b) throws IOException {
+            if(count == buffer.length) {
+                flushBuffer();
+            }
+            buffer[count++] = (byte) b;
+        }
+        
+        public void write(byte[] b, int off, int len) throws IOException {
+            while(len > 0) {
+                if(count == buffer.length) {
+                    flushBuffer();
+                }
+                int n = Math.min(len, buffer.length - count);
+                System.arraycopy(b, off, buffer, count, n);
+                count += n;
+                off += n;
+                len -= n;
+            }
+        }
+        
+        public void flush() throws IOException {
+            flushBuffer();
+            out.flush();
+        }
+        
+        // Return the CRC32 of every byte written so far
+        long checksum() {
+            crc.update(buffer, checked, count - checked);
+            checked = count;
+            return crc.getValue();
+        }
+        
+        private void flushBuffer() throws IOException {
+            crc.update(buffer, checked, count - checked);
+            out.write(buffer, 0, count);
+            count = 0;
+            checked = 0;
+        }
+    }
+    
+    // Reads snapshot input in blocks and keeps the CRC32 of everything
+    // consumed, the counterpart of ChecksumOutput.
+    private static class ChecksumInput extends InputStream {
+        private final InputStream in;
+        private final CRC32 crc = new CRC32();
+        private final byte[] buffer = new byte[1 << 16];
+        private int pos;     // next byte of buffer to hand out
+        private int limit;   // bytes in buffer
+        private int checked; // bytes of buffer already in crc
+        
+        ChecksumInput(InputStream in) {
+            this.in = in;
+        }
+        
+        public int read() throws IOException {
+            if(pos == limit && !fill()) {
+                return -1;
+            }
+            return buffer[pos++] & 0xff;
+        }
+        
+        public int read(byte[] b, int off, int len) throws IOException {
+            if(len == 0) {
+                return 0;
+            }
+            if(pos == limit && !fill()) {
+                return -1;
+            }
+            int n = Math.min(len, limit - pos);
+            System.arraycopy(buffer, pos, b, off, n);
+            pos += n;
+            return n;
+        }
+        
+        // Return the CRC32 of every byte read so far
+        long checksum() {
+            crc.update(buffer, checked, pos - checked);
+            checked = pos;
+            return crc.getValue();
+        }
+        
+        private boolean fill() throws IOException {
+            crc.update(buffer, checked, pos - checked);
+            pos = 0;
+            limit = 0;
+            checked = 0;
+            int n = in.read(buffer, 0, buffer.length);
+            if(n <= 0) {
+                return false;
+            }
+            limit = n;
+            return true;
+        }
+    }
+}
@@ -0,0 +1,407 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+
+// Synthetic workloads for comparing engine changes on identical input.
+// A workload is a sheet in the save format plus a trace of edits in the
+// command syntax of AckCellTextUI, one per line:
+//
+//   set id contents
+//   delete id
+//
+// Generate one and replay it headless from the command line:
+//
+//   java Workload generate [options] sheet.txt trace.txt
+//   java Workload replay sheet.txt trace.txt [-parallel] [-repeat R]
+//
+// Generator options, all optional:
+//
+//   -cells N      cells in the sheet (10000)
+//   -depth D      formula levels, the longest dependency chain (20)
+//   -fanin F      at most F cell references per formula (4)
+//   -length L     at least L operands per formula, references padded
+//                 with constants (2)
+//   -mix S:N:F    shares of string, number and formula cells (1:3:6)
+//   -ops M        edits in the trace (100000)
+//   -deletes P    share of edits which delete a cell (0.05)
+//   -seed X       random seed, the same seed gives the same files (1)
+//
+// Every formula cell sits on a level from 1 to depth and reads one cell
+// of the level below it and otherwise random cells of lower levels;
+// number and string cells are level 0.  Edits keep each cell's kind and
+// level, so no sheet or trace ever contains a cycle.
+//
+// The replayer loads the sheet, reads the whole trace into memory and
+// then applies every edit to the Spreadsheet as fast as it can, timing
+// each one.  It reports latency percentiles per command; edits the
+// sheet rejects are counted as failures.
+public class Workload {
+
+    private static final int ROWS = 1000; // rows filled per column
+
+    public static void main(String[] args) throws IOException {
+        if(args.length > 0 && args[0].equals("generate")) {
+            generate(Arrays.copyOfRange(args, 1, args.length));
+        } else if(args.length > 0 && args[0].equals("replay")) {
+            replay(Arrays.copyOfRange(args, 1, args.length));
+        } else {
+            System.out.println("Usage: java Workload generate [options] sheet.txt trace.txt");
+            System.out.println("       java Workload replay sheet.txt trace.txt [-parallel] [-repeat R]");
+        }
+    }
+
+    private static void generate(String[] args) throws IOException {
+        int cells = 10000;
+        int depth = 20;
+        int fanIn = 4;
+        int length = 2;
+        double[] mix = {1, 3, 6};
+        int ops = 100000;
+        double deletes = 0.05;
+        long seed = 1;
+        List<String> files = new ArrayList<>();
+        for(int i = 0; i < args.length; i++) {
+            if(!args[i].startsWith("-")) {
+                files.add(args[i]);
+                continue;
+            }
+            if(i + 1 == args.length) {
+                throw new IllegalArgumentException("Option " + args[i] + " needs a value");
+            }
+            String value = args[++i];
+            if(args[i - 1].equals("-cells")) {
+                cells = Integer.parseInt(value);
+            } else if(args[i - 1].equals("-depth")) {
+                depth = Integer.parseInt(value);
+            } else if(args[i - 1].equals("-fanin")) {
+                fanIn = Integer.parseInt(value);
+            } else if(args[i - 1].equals("-length")) {
+                length = Integer.parseInt(value);
+            } else if(args[i - 1].equals("-mix")) {
+                String[] parts = value.split(":");
+                if(parts.length != 3) {
+                    throw new IllegalArgumentException("Mix must be strings:numbers:formulas, not " + value);
+                }
+                for(int k = 0; k < 3; k++) {
+                    mix[k] = Double.parseDouble(parts[k]);
+                }
+            } else if(args[i - 1].equals("-ops")) {
+                ops = Integer.parseInt(value);
+            } else if(args[i - 1].equals("-deletes")) {
+                deletes = Double.parseDouble(value);
+            } else if(args[i - 1].equals("-seed")) {
+                seed = Long.parseLong(value);
+            } else {
+                throw new IllegalArgumentException("Unknown option " + args[i - 1]);
+            }
+        }
+        if(files.size() != 2) {
+            throw new IllegalArgumentException("Expected a sheet file and a trace file");
+        }
+        double total = mix[0] + mix[1] + mix[2];
+        Generator generator = new Generator(cells, depth, fanIn, length,
+                                            mix[0] / total, mix[1] / total, seed);
+        try(Writer out = Files.newBufferedWriter(Paths.get(files.get(0)), StandardCharsets.UTF_8)) {
+            generator.writeSheet(out);
+        }
+        try(Writer out = Files.newBufferedWriter(Paths.get(files.get(1)), StandardCharsets.UTF_8)) {
+            generator.writeTrace(out, ops, deletes);
+        }
+    }
+
+    private static void replay(String[] args) throws IOException {
+        boolean parallel = false;
+        int repeat = 1;
+        List<String> files = new ArrayList<>();
+        for(int i = 0; i < args.length; i++) {
+            if(args[i].equals("-parallel")) {
+                parallel = true;
+            } else if(args[i].equals("-repeat") && i + 1 < args.length) {
+                repeat = Integer.parseInt(args[++i]);
+            } else {
+                files.add(args[i]);
+            }
+        }
+        if(files.size() != 2) {
+            throw new IllegalArgumentException("Expected a sheet file and a trace file");
+        }
+        List<String> trace = Files.readAllLines(Paths.get(files.get(1)), StandardCharsets.UTF_8);
+        for(int run = 1; run <= repeat; run++) {
+            long start = System.nanoTime();
+            Spreadsheet sheet = Spreadsheet.load(Paths.get(files.get(0)));
+            long loaded = System.nanoTime();
+            sheet.setParallelRecalc(parallel);
+            Report report = replay(sheet, trace);
+            System.out.printf("Run %d: sheet loaded in %.1f ms, %d edits in %.1f ms (%.0f edits/s)%n",
+                              run, (loaded - start) / 1e6, report.edits(), report.totalNanos() / 1e6,
+                              report.edits() / (report.totalNanos() / 1e9));
+            report.print(System.out);
+        }
+    }
+
+    // Apply every command of the trace to the sheet in order, timing
+    // each one.  Lines are split the way AckCellTextUI reads commands:
+    // the command word, the ID and the trimmed rest of the line as the
+    // contents.  Blank lines are skipped and unknown commands count as
+    // failures of their own kind.
+    //
+    // TARGET COMPLEXITY: the cost of the edits themselves plus O(T)
+    //   T : number of commands
+    public static Report replay(Spreadsheet sheet, List<String> trace) {
+        Report report = new Report();
+        for(String line : trace) {
+            String[] command = splitCommand(line);
+            if(command == null) {
+                continue;
+            }
+            boolean failed = false;
+            long start = System.nanoTime();
+            try {
+                if(command[0].equals("set")) {
+                    sheet.setCell(command[1], command[2]);
+                } else if(command[0].equals("delete")) {
+                    sheet.deleteCell(command[1]);
+                } else {
+                    failed = true;
+                }
+            } catch(RuntimeException e) {
+                failed = true;
+            }
+            report.record(command[0], System.nanoTime() - start, failed);
+        }
+        return report;
+    }
+
+    // Split a command line into command, ID and contents, or return
+    // null for a blank line
+    private static String[] splitCommand(String line) {
+        int length = line.length();
+        int start = skip(line, 0, true);
+        if(start == length) {
+            return null;
+        }
+        int end = skip(line, start, false);
+        int idStart = skip(line, end, true);
+        int idEnd = skip(line, idStart, false);
+        return new String[] {line.substring(start, end),
+                             line.substring(idStart, idEnd),
+                             line.substring(idEnd).trim()};
+    }
+
+    // Skip whitespace, or non-whitespace, from index i
+    private static int skip(String line, int i, boolean whitespace) {
+        while(i < line.length() && Character.isWhitespace(line.charAt(i)) == whitespace) {
+            i++;
+        }
+        return i;
+    }
+
+    // Latencies of a replay by command
+    public static class Report {
+        private final List<String> commands = new ArrayList<>();
+        private final List<long[]> latencies = new ArrayList<>();
+        private final List<Integer> counts = new ArrayList<>();
+        private final List<Integer> failures = new ArrayList<>();
+        private long totalNanos;
+        private int edits;
+
+        // Record one command which took the given time
+        public void record(String command, long nanos, boolean failed) {
+            int k = commands.indexOf(command);
+            if(k < 0) {
+                k = commands.size();
+                commands.add(command);
+                latencies.add(new long[1024]);
+                counts.add(0);
+                failures.add(0);
+            }
+            long[] times = latencies.get(k);
+            int count = counts.get(k);
+            if(count == times.length) {
+                times = Arrays.copyOf(times, count * 2);
+                latencies.set(k, times);
+            }
+            times[count] = nanos;
+            counts.set(k, count + 1);
+            if(failed) {
+                failures.set(k, failures.get(k) + 1);
+            }
+            totalNanos += nanos;
+            edits++;
+        }
+
+        public int edits() {
+            return edits;
+        }
+
+        public long totalNanos() {
+            return totalNanos;
+        }
+
+        // Return the latency in nanoseconds below which the given
+        // fraction of the command's calls finished, -1 if there were
+        // none
+        public long percentile(String command, double fraction) {
+            int k = commands.indexOf(command);
+            if(k < 0 || counts.get(k) == 0) {
+                return -1;
+            }
+            long[] sorted = Arrays.copyOf(latencies.get(k), counts.get(k));
+            Arrays.sort(sorted);
+            return sorted[Math.min(sorted.length - 1, (int) (sorted.length * fraction))];
+        }
+
+        // Print a table of count, failures, mean and percentiles in
+        // microseconds per command
+        public void print(PrintStream out) {
+            out.printf("  %-8s %9s %8s %9s %9s %9s %9s %9s %10s%n",
+                       "command", "count", "failed", "mean us", "p50", "p90", "p99", "p99.9", "max");
+            for(int k = 0; k < commands.size(); k++) {
+                int count = counts.get(k);
+                long[] sorted = Arrays.copyOf(latencies.get(k), count);
+                Arrays.sort(sorted);
+                long sum = 0;
+                for(long nanos : sorted) {
+                    sum += nanos;
+                }
+                out.printf("  %-8s %9d %8d %9.2f %9.2f %9.2f %9.2f %9.2f %10.2f%n",
+                           commands.get(k), count, failures.get(k), sum / 1e3 / count,
+                           at(sorted, 0.50), at(sorted, 0.90), at(sorted, 0.99),
+                           at(sorted, 0.999), sorted[count - 1] / 1e3);
+            }
+        }
+
+        private static double at(long[] sorted, double fraction) {
+            return sorted[Math.min(sorted.length - 1, (int) (sorted.length * fraction))] / 1e3;
+        }
+    }
+
+    // Generates a sheet and traces of edits to it.  The kind and level
+    // of every cell is fixed when the generator is made, so traces can
+    // be generated repeatedly for the same sheet.
+    public static class Generator {
+        private final int fanIn;
+        private final int length;
+        private final Random random;
+        private final String[] ids;
+        private final byte[] kinds;  // STRING, NUMBER or FORMULA
+        private final int[] levels;
+        private final int[][] byLevel; // cells readable at each level
+        private static final byte STRING = 0;
+        private static final byte NUMBER = 1;
+        private static final byte FORMULA = 2;
+        private static final String[] OPERATORS = {"+", "-", "*", "/"};
+
+        // Make a generator of the given number of cells with
+        // stringShare string and numberShare number cells, the rest
+        // formulas of depth levels with at most fanIn references and at
+        // least length operands each
+        public Generator(int cells, int depth, int fanIn, int length,
+                         double stringShare, double numberShare, long seed) {
+            if(cells < 1 || depth < 1 || fanIn < 1 || length < 1) {
+                throw new IllegalArgumentException("Cells, depth, fan-in and length must be positive");
+            }
+            if(cells > ROWS * CellRef.MAX_COLUMN) {
+                throw new IllegalArgumentException("At most " + ROWS * CellRef.MAX_COLUMN + " cells");
+            }
+            this.fanIn = fanIn;
+            this.length = length;
+            this.random = new Random(seed);
+            this.ids = new String[cells];
+            this.kinds = new byte[cells];
+            this.levels = new int[cells];
+            int[] perLevel = new int[depth + 1];
+            for(int i = 0; i < cells; i++) {
+                ids[i] = CellRef.toID(CellRef.make(1 + i / ROWS, 1 + i % ROWS));
+                double draw = random.nextDouble();
+                if(i == 0 || (draw >= stringShare && draw < stringShare + numberShare)) {
+                    // formulas need at least one number to read
+                    kinds[i] = NUMBER;
+                } else if(draw < stringShare) {
+                    kinds[i] = STRING;
+                } else {
+                    kinds[i] = FORMULA;
+                    levels[i] = 1 + random.nextInt(depth);
+                }
+                // strings are never read by formulas
+                if(kinds[i] != STRING) {
+                    perLevel[levels[i]]++;
+                }
+            }
+            byLevel = new int[depth + 1][];
+            for(int level = 0; level <= depth; level++) {
+                byLevel[level] = new int[perLevel[level]];
+                perLevel[level] = 0;
+            }
+            for(int i = 0; i < cells; i++) {
+                if(kinds[i] != STRING) {
+                    byLevel[levels[i]][perLevel[levels[i]]++] = i;
+                }
+            }
+        }
+
+        // Write every cell of the sheet in the save format
+        public void writeSheet(Appendable out) throws IOException {
+            for(int i = 0; i < ids.length; i++) {
+                out.append(ids[i]).append(' ').append(contents(i)).append('\n');
+            }
+        }
+
+        // Write a trace of ops edits to random cells, deleteShare of
+        // them deletions and the rest new contents of the cell's kind
+        public void writeTrace(Appendable out, int ops, double deleteShare) throws IOException {
+            for(int op = 0; op < ops; op++) {
+                int i = random.nextInt(ids.length);
+                if(random.nextDouble() < deleteShare) {
+                    out.append("delete ").append(ids[i]).append('\n');
+                } else {
+                    out.append("set ").append(ids[i]).append(' ').append(contents(i)).append('\n');
+                }
+            }
+        }
+
+        // New random contents for cell i of its kind and level
+        private String contents(int i) {
+            if(kinds[i] == STRING) {
+                return "label" + random.nextInt(1000);
+            }
+            if(kinds[i] == NUMBER) {
+                return Integer.toString(random.nextInt(1000));
+            }
+            int level = levels[i];
+            int references = 1 + random.nextInt(fanIn);
+            int operands = Math.max(references, length);
+            StringBuilder formula = new StringBuilder("=");
+            for(int k = 0; k < operands; k++) {
+                if(k > 0) {
+                    formula.append(OPERATORS[random.nextInt(OPERATORS.length)]);
+                }
+                if(k == 0) {
+                    // the level below keeps the chains depth long
+                    formula.append(ids[readable(level - 1)]);
+                } else if(k < references) {
+                    formula.append(ids[readable(random.nextInt(level))]);
+                } else {
+                    formula.append(1 + random.nextInt(9));
+                }
+            }
+            return formula.toString();
+        }
+
+        // A random readable cell of the given level, or of the nearest
+        // lower level holding one; level 0 always holds a number
+        private int readable(int level) {
+            while(byLevel[level].length == 0) {
+                level--;
+            }
+            return byLevel[level][random.nextInt(byLevel[level].length)];
+        }
+    }
+}
@@ -0,0 +1,64 @@
+package bench;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntToDoubleFunction;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// JMH benchmarks of the hot paths of the spreadsheet, one per shape and
+// operation of the plain Benchmark harness, run with
+//
+//   gradle jmh
+//
+// and narrowed with the JMH options of the jmh block of build.gradle.
+// The sheets and operations are those of Benchmark.Fixture, so both
+// harnesses measure the same work; this one adds forks, warmup and
+// measurement iterations and JMH's protection against dead code.
+//
+// JMH cannot generate code for a class in the default package, where
+// the spreadsheet lives, and a named package cannot name its classes.
+// The fixture is therefore made by reflection once per trial, and the
+// measured call goes through the IntToDoubleFunction it returns.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(2)
+public class EngineBenchmark {
+
+    @Param({"chain", "diamond", "fanout", "fanin", "random"})
+    public String shape;
+
+    @Param({"parse", "eval", "tree", "dag", "set", "load"})
+    public String op;
+
+    @Param({"10000"})
+    public int size;
+
+    private IntToDoubleFunction operation;
+    private int call;
+
+    @Setup
+    public void setUp() throws ReflectiveOperationException {
+        Class<?> fixtureClass = Class.forName("Benchmark$Fixture");
+        Object fixture = fixtureClass.getConstructor(String.class, int.class).newInstance(shape, size);
+        operation = (IntToDoubleFunction) fixtureClass.getMethod("operation", String.class).invoke(fixture, op);
+        call = 0;
+    }
+
+    @Benchmark
+    public double run() {
+        return operation.applyAsDouble(call++);
+    }
+}